@@ -20,11 +20,12 @@ import javax.xml.bind.annotation.XmlType;
 
 
 @XmlRootElement(name="CommandRequest")
-@XmlType(name="CommandRequest", propOrder={"cmd", "stdin", "notification"})
+@XmlType(name="CommandRequest", propOrder={"cmd", "stdin", "streamStdin", "notification"})
 
 public class CommandRequest {
 	String cmd;
 	String stdin;
+	boolean streamStdin;
 	URI notification;
 	
 	public CommandRequest() {}
@@ -57,6 +58,20 @@ public class CommandRequest {
 		this.stdin = stdin;
 	}
 
+	/**
+	 * @return true if stdin is supplied by PUT to the task stdin resource rather than in the request
+	 */
+	public boolean isStreamStdin() {
+		return streamStdin;
+	}
+
+	/**
+	 * @param streamStdin the streamStdin to set
+	 */
+	public void setStreamStdin(boolean streamStdin) {
+		this.streamStdin = streamStdin;
+	}
+
 	/**
 	 * @return the notification
 	 */
@@ -78,8 +93,8 @@ public class CommandRequest {
 	@Override
 	public String toString() {
 		return String.format(
-				"CommandRequest [cmd=%s, stdin=%s, notification=%s]",
-				cmd, stdin, notification);
+				"CommandRequest [cmd=%s, stdin=%s, streamStdin=%s, notification=%s]",
+				cmd, stdin, streamStdin, notification);
 	}
 	
 	
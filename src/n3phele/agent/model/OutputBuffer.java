@@ -0,0 +1,285 @@
+/**
+ * @author Nigel Cook
+ *
+ * (C) Copyright 2010-2012. Nigel Cook. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * Licensed under the terms described in LICENSE file that accompanied this code, (the "License"); you may not use this file
+ * except in compliance with the License.
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ *  an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ */
+package n3phele.agent.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import n3phele.service.core.Resource;
+
+/** Captured output of a task stream, held with bounded heap.
+ * <p>
+ * The first outputHeadBytes of the stream are kept in memory, as are the most recent outputTailBytes,
+ * which are held in a ring buffer. Bytes pushed out of the ring buffer are appended to a spill file in
+ * the agent workDir, so the complete stream remains readable by offset while heap use per stream is
+ * fixed regardless of output volume.
+ * <p>
+ * Offsets are byte offsets from the start of the stream. Content is decoded as UTF-8 when read as text.
+ */
+public class OutputBuffer {
+	private static Logger log = Logger.getLogger(OutputBuffer.class.getName());
+	public static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int headLimit = Resource.get("outputHeadBytes", 64*1024);
+	private static final int tailLimit = Resource.get("outputTailBytes", 256*1024);
+	private static final File workDir = new File(Resource.get("workDir",
+			System.getProperty("java.io.tmpdir")+File.separator+"n3phele"));
+
+	private String name;
+	private byte[] head = new byte[0];
+	private int headCount = 0;
+	private byte[] ring = null;
+	private int ringNext = 0;	// index in ring of the next byte written
+	private int ringCount = 0;
+	private long spilled = 0;
+	private File spillFile = null;
+	private RandomAccessFile spill = null;
+	private boolean spillLost = false;
+	private boolean released = false;
+
+	/**
+	 * @param name prefix used to name the spill file
+	 */
+	public OutputBuffer(String name) {
+		this.name = name;
+	}
+
+	public OutputBuffer(String name, String content) {
+		this(name);
+		append(content);
+	}
+
+	/**
+	 * @param name prefix used to name the spill file
+	 */
+	public synchronized void setName(String name) {
+		this.name = name;
+	}
+
+	/** Appends text to the stream, encoded as UTF-8
+	 * @param s
+	 */
+	public void append(String s) {
+		byte[] b = s.getBytes(UTF8);
+		append(b, 0, b.length);
+	}
+
+	/** Appends bytes to the stream
+	 * @param b
+	 * @param off
+	 * @param len
+	 */
+	public synchronized void append(byte[] b, int off, int len) {
+		if(headCount < headLimit) {
+			int n = Math.min(len, headLimit - headCount);
+			if(headCount + n > head.length) {
+				byte[] grown = new byte[Math.min(headLimit, Math.max(headCount + n, Math.max(256, 2*head.length)))];
+				System.arraycopy(head, 0, grown, 0, headCount);
+				head = grown;
+			}
+			System.arraycopy(b, off, head, headCount, n);
+			headCount += n;
+			off += n;
+			len -= n;
+		}
+		if(len > 0) {
+			if(ring == null)
+				ring = new byte[Math.max(1, tailLimit)];
+			if(len >= ring.length) {
+				// everything in the ring, and the start of the new bytes, is pushed out
+				spillRing(ringCount);
+				int direct = len - ring.length;
+				spill(b, off, direct);
+				System.arraycopy(b, off+direct, ring, 0, ring.length);
+				ringNext = 0;
+				ringCount = ring.length;
+			} else {
+				int excess = ringCount + len - ring.length;
+				if(excess > 0)
+					spillRing(excess);
+				int first = Math.min(len, ring.length - ringNext);
+				System.arraycopy(b, off, ring, ringNext, first);
+				System.arraycopy(b, off+first, ring, 0, len-first);
+				ringNext = (ringNext + len) % ring.length;
+				ringCount += len;
+			}
+		}
+		notifyAll();
+	}
+
+	/**
+	 * @return the number of bytes written to the stream
+	 */
+	public synchronized long length() {
+		return headCount + spilled + ringCount;
+	}
+
+	/** Waits for the stream to grow beyond a given length
+	 * @param length
+	 * @param timeout maximum milliseconds to wait
+	 * @return true if the stream is longer than length
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean await(long length, long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		long remaining = timeout;
+		while(length() <= length && remaining > 0) {
+			wait(remaining);
+			remaining = deadline - System.currentTimeMillis();
+		}
+		return length() > length;
+	}
+
+	/** Reads stream content by offset
+	 * @param position offset in the stream of the first byte to read
+	 * @param b buffer into which bytes are read
+	 * @param off offset in b
+	 * @param len maximum bytes to read
+	 * @return number of bytes read, 0 if position is at or beyond the end of the stream
+	 * @throws IOException if the requested content has been spilled and is no longer available
+	 */
+	public synchronized int read(long position, byte[] b, int off, int len) throws IOException {
+		long end = Math.min(length(), position + len);
+		int count = 0;
+		while(position < end) {
+			int n;
+			if(position < headCount) {
+				n = (int) Math.min(end - position, headCount - position);
+				System.arraycopy(head, (int)position, b, off, n);
+			} else if(position < headCount + spilled) {
+				if(spill == null || spillLost)
+					throw new IOException("Output at offset "+position+" is no longer available");
+				n = (int) Math.min(end - position, headCount + spilled - position);
+				spill.seek(position - headCount);
+				spill.readFully(b, off, n);
+			} else {
+				long ringStart = headCount + spilled;
+				int oldest = (ringNext - ringCount + ring.length) % ring.length;
+				int index = (int)((oldest + position - ringStart) % ring.length);
+				n = (int) Math.min(end - position, ring.length - index);
+				System.arraycopy(ring, index, b, off, n);
+			}
+			position += n;
+			off += n;
+			count += n;
+		}
+		return count;
+	}
+
+	/** Finds the end of the last complete UTF-8 sequence in a byte range, so that
+	 * text is not split within a character
+	 * @param b
+	 * @param off
+	 * @param len
+	 * @return the number of bytes from off up to the end of the last complete UTF-8 sequence
+	 */
+	public static int completeUTF8(byte[] b, int off, int len) {
+		for(int i = 1; i <= 3 && i <= len; i++) {
+			int c = b[off+len-i] & 0xff;
+			if((c & 0xc0) == 0x80)
+				continue; // continuation byte
+			int need = (c >= 0xf0)? 4 : (c >= 0xe0)? 3 : (c >= 0xc0)? 2 : 1;
+			if(need > i)
+				return len - i;
+			break;
+		}
+		return len;
+	}
+
+	/**
+	 * @return approximate heap bytes held by the buffer
+	 */
+	public synchronized long getRetainedBytes() {
+		return head.length + (ring == null? 0 : ring.length);
+	}
+
+	/**
+	 * Deletes the spill file. Subsequent output is still counted, but content pushed out of the tail is discarded.
+	 */
+	public synchronized void release() {
+		released = true;
+		closeSpill();
+		if(spillFile != null) {
+			if(!spillFile.delete())
+				log.warning("Unable to delete "+spillFile);
+			spillFile = null;
+		}
+	}
+
+	/** The stream content, with content held only in the spill file elided
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public synchronized String toString() {
+		StringBuilder result = new StringBuilder(new String(head, 0, headCount, UTF8));
+		if(spilled > 0) {
+			result.append("\n... ").append(spilled).append(" bytes omitted ...\n");
+		}
+		if(ringCount > 0) {
+			byte[] tail = new byte[ringCount];
+			int oldest = (ringNext - ringCount + ring.length) % ring.length;
+			int first = Math.min(ringCount, ring.length - oldest);
+			System.arraycopy(ring, oldest, tail, 0, first);
+			System.arraycopy(ring, 0, tail, first, ringCount - first);
+			result.append(new String(tail, UTF8));
+		}
+		return result.toString();
+	}
+
+	/*
+	 * Moves the oldest n bytes of the ring to the spill file
+	 */
+	private void spillRing(int n) {
+		if(n <= 0) return;
+		int oldest = (ringNext - ringCount + ring.length) % ring.length;
+		int first = Math.min(n, ring.length - oldest);
+		spill(ring, oldest, first);
+		spill(ring, 0, n - first);
+		ringCount -= n;
+	}
+
+	private void spill(byte[] b, int off, int len) {
+		if(len <= 0) return;
+		if(!released && !spillLost) {
+			try {
+				if(spill == null) {
+					if(!workDir.exists())
+						workDir.mkdirs();
+					spillFile = File.createTempFile(name+"-", ".log", workDir);
+					spill = new RandomAccessFile(spillFile, "rw");
+				}
+				spill.seek(spilled);
+				spill.write(b, off, len);
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Output spill to "+spillFile+" failed, older output discarded", e);
+				spillLost = true;
+				closeSpill();
+			}
+		}
+		spilled += len;
+	}
+
+	private void closeSpill() {
+		if(spill != null) {
+			try {
+				spill.close();
+			} catch (IOException e) {
+			}
+			spill = null;
+		}
+	}
+}
@@ -33,19 +33,22 @@ public class Task {
 	private Date finished;
 	private String[] cmd;
 	private String stdin;
-	private StringBuilder stdout;
-	private StringBuilder stderr;
+	private OutputBuffer stdout = new OutputBuffer("stdout");
+	private OutputBuffer stderr = new OutputBuffer("stderr");
 	private Origin[] manifest;
 	private int exitcode;
 	private int progress= 0; // 0.. 1000
 	private Process process;
 	private URI notification;
+	private boolean streamStdin = false;
+	private boolean stdinBusy = false;
+	private boolean stdinClosed = false;
 
 	
 	public Task() {}
 
 	public Task(String[] cmd, String stdin, URI notification) {
-		this(null, Calendar.getInstance().getTime(), null, cmd, stdin, new StringBuilder(), new StringBuilder(),
+		this(null, Calendar.getInstance().getTime(), null, cmd, stdin, new OutputBuffer("stdout"), new OutputBuffer("stderr"),
 				-1, null, notification);
 	}
 
@@ -61,7 +64,7 @@ public class Task {
 	 * @param process
 	 */
 	public Task(String id, Date started, Date finished, String[] cmd,
-			String stdin, StringBuilder stdout, StringBuilder stderr,
+			String stdin, OutputBuffer stdout, OutputBuffer stderr,
 			int exitcode, Process process, URI notification) {
 		super();
 		this.id = id;
@@ -91,6 +94,8 @@ public class Task {
 	 */
 	public void setId(String id) {
 		this.id = id;
+		stdout.setName("task"+id+"-stdout");
+		stderr.setName("task"+id+"-stderr");
 	}
 
 
@@ -121,8 +126,9 @@ public class Task {
 	/**
 	 * @param finished the finished to set
 	 */
-	public void setFinished(Date finished) {
+	public synchronized void setFinished(Date finished) {
 		this.finished = finished;
+		notifyAll();
 	}
 
 
@@ -162,7 +168,7 @@ public class Task {
 	 * @return the stdout
 	 */
 	@XmlTransient
-	public StringBuilder getStdoutStringBuilder() {
+	public OutputBuffer getStdoutBuffer() {
 		return stdout;
 	}
 
@@ -170,7 +176,7 @@ public class Task {
 	/**
 	 * @param stdout the stdout to set
 	 */
-	public void setStdoutStringBuilder(StringBuilder stdout) {
+	public void setStdoutBuffer(OutputBuffer stdout) {
 		this.stdout = stdout;
 	}
 
@@ -179,7 +185,7 @@ public class Task {
 	 * @return the stderr
 	 */
 	@XmlTransient
-	public StringBuilder getStderrStringBuilder() {
+	public OutputBuffer getStderrBuffer() {
 		return stderr;
 	}
 
@@ -187,7 +193,7 @@ public class Task {
 	/**
 	 * @param stderr the stderr to set
 	 */
-	public void setStderrStringBuilder(StringBuilder stderr) {
+	public void setStderrBuffer(OutputBuffer stderr) {
 		this.stderr = stderr;
 	}
 
@@ -204,7 +210,7 @@ public class Task {
 	 * @param stdout the stdout to set
 	 */
 	public void setStdout(String stdout) {
-		this.stdout = new StringBuilder(stdout);
+		this.stdout = new OutputBuffer("stdout", stdout);
 	}
 
 	/**
@@ -219,7 +225,7 @@ public class Task {
 	 * @param stderr the stderr to set
 	 */
 	public void setStderr(String stderr) {
-		this.stderr = new StringBuilder(stderr);
+		this.stderr = new OutputBuffer("stderr", stderr);
 	}
 
 	/**
@@ -250,8 +256,57 @@ public class Task {
 	/**
 	 * @param process the process to set
 	 */
-	public void setProcess(Process process) {
+	public synchronized void setProcess(Process process) {
 		this.process = process;
+		notifyAll();
+	}
+
+	/** Waits for the process of the task to be started
+	 * @param timeout maximum milliseconds to wait
+	 * @return the process, or null if the task finished without starting one or the wait timed out
+	 * @throws InterruptedException
+	 */
+	public synchronized Process awaitProcess(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		long remaining = timeout;
+		while(process == null && finished == null && remaining > 0) {
+			wait(remaining);
+			remaining = deadline - System.currentTimeMillis();
+		}
+		return process;
+	}
+
+	/**
+	 * @return true if the process stdin is supplied by a client stream, rather than from stdin
+	 */
+	@XmlTransient
+	public boolean isStreamStdin() {
+		return streamStdin;
+	}
+
+	/**
+	 * @param streamStdin the streamStdin to set
+	 */
+	public void setStreamStdin(boolean streamStdin) {
+		this.streamStdin = streamStdin;
+	}
+
+	/** Reserves the process stdin for a client stream
+	 * @return false if the stdin is closed or another stream holds it
+	 */
+	public synchronized boolean claimStdin() {
+		if(stdinBusy || stdinClosed)
+			return false;
+		stdinBusy = true;
+		return true;
+	}
+
+	/** Releases the process stdin following a client stream
+	 * @param closed true if the stdin has been closed
+	 */
+	public synchronized void releaseStdin(boolean closed) {
+		stdinBusy = false;
+		stdinClosed |= closed;
 	}
 	
 
@@ -314,6 +369,14 @@ public class Task {
 		this.manifest = manifest;
 	}
 
+	/**
+	 * Releases the spill files holding older output of the task
+	 */
+	public void release() {
+		stdout.release();
+		stderr.release();
+	}
+
 	/* (non-Javadoc)
 	 * @see java.lang.Object#toString()
 	 */
@@ -0,0 +1,130 @@
+/**
+ * @author Nigel Cook
+ *
+ * (C) Copyright 2010-2012. Nigel Cook. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * Licensed under the terms described in LICENSE file that accompanied this code, (the "License"); you may not use this file
+ * except in compliance with the License.
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ *  an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ */
+package n3phele.agent.model;
+
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+
+/** A range of the output of a task stream. Clients poll for new output by
+ * passing nextOffset as the offset of their next request.
+ *
+ */
+@XmlRootElement(name="TaskOutput")
+@XmlType(name="TaskOutput", propOrder={"offset", "nextOffset", "length", "complete", "data"})
+public class TaskOutput {
+	private long offset;
+	private long nextOffset;
+	private long length;
+	private boolean complete;
+	private String data;
+
+	public TaskOutput() {}
+
+	/**
+	 * @param offset byte offset in the stream of the first byte of data
+	 * @param nextOffset byte offset in the stream following the last byte of data
+	 * @param length number of bytes written to the stream so far
+	 * @param complete true if the task has finished and no further output follows
+	 * @param data the output, decoded as UTF-8
+	 */
+	public TaskOutput(long offset, long nextOffset, long length, boolean complete, String data) {
+		this.offset = offset;
+		this.nextOffset = nextOffset;
+		this.length = length;
+		this.complete = complete;
+		this.data = data;
+	}
+
+	/**
+	 * @return the offset
+	 */
+	public long getOffset() {
+		return this.offset;
+	}
+
+	/**
+	 * @param offset the offset to set
+	 */
+	public void setOffset(long offset) {
+		this.offset = offset;
+	}
+
+	/**
+	 * @return the nextOffset
+	 */
+	public long getNextOffset() {
+		return this.nextOffset;
+	}
+
+	/**
+	 * @param nextOffset the nextOffset to set
+	 */
+	public void setNextOffset(long nextOffset) {
+		this.nextOffset = nextOffset;
+	}
+
+	/**
+	 * @return the length
+	 */
+	public long getLength() {
+		return this.length;
+	}
+
+	/**
+	 * @param length the length to set
+	 */
+	public void setLength(long length) {
+		this.length = length;
+	}
+
+	/**
+	 * @return the complete
+	 */
+	public boolean isComplete() {
+		return this.complete;
+	}
+
+	/**
+	 * @param complete the complete to set
+	 */
+	public void setComplete(boolean complete) {
+		this.complete = complete;
+	}
+
+	/**
+	 * @return the data
+	 */
+	public String getData() {
+		return this.data;
+	}
+
+	/**
+	 * @param data the data to set
+	 */
+	public void setData(String data) {
+		this.data = data;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return String
+				.format("TaskOutput [offset=%s, nextOffset=%s, length=%s, complete=%s, data=%s]",
+						this.offset, this.nextOffset, this.length,
+						this.complete, this.data);
+	}
+
+}
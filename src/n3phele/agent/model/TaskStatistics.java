@@ -0,0 +1,254 @@
+/**
+ * @author Nigel Cook
+ *
+ * (C) Copyright 2010-2012. Nigel Cook. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * Licensed under the terms described in LICENSE file that accompanied this code, (the "License"); you may not use this file
+ * except in compliance with the License.
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ *  an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ */
+package n3phele.agent.model;
+
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+
+/** Counters describing the tasks held by the agent, for monitoring.
+ *
+ */
+@XmlRootElement(name="TaskStatistics")
+@XmlType(name="TaskStatistics", propOrder={"tasks", "running", "retainedBytes", "evictedByCount", "evictedByAge", "evictedByBytes",
+		"shellActive", "shellQueued", "shellRejected", "xferActive", "xferQueued", "xferRejected", "ioLinesLogged", "ioLinesSuppressed"})
+public class TaskStatistics {
+	private int tasks;
+	private int running;
+	private long retainedBytes;
+	private long evictedByCount;
+	private long evictedByAge;
+	private long evictedByBytes;
+	private int shellActive;
+	private int shellQueued;
+	private long shellRejected;
+	private int xferActive;
+	private int xferQueued;
+	private long xferRejected;
+	private long ioLinesLogged;
+	private long ioLinesSuppressed;
+
+	public TaskStatistics() {}
+
+	/**
+	 * @return the number of tasks held
+	 */
+	public int getTasks() {
+		return this.tasks;
+	}
+
+	/**
+	 * @param tasks the tasks to set
+	 */
+	public void setTasks(int tasks) {
+		this.tasks = tasks;
+	}
+
+	/**
+	 * @return the number of tasks not yet finished
+	 */
+	public int getRunning() {
+		return this.running;
+	}
+
+	/**
+	 * @param running the running to set
+	 */
+	public void setRunning(int running) {
+		this.running = running;
+	}
+
+	/**
+	 * @return the bytes of task output held
+	 */
+	public long getRetainedBytes() {
+		return this.retainedBytes;
+	}
+
+	/**
+	 * @param retainedBytes the retainedBytes to set
+	 */
+	public void setRetainedBytes(long retainedBytes) {
+		this.retainedBytes = retainedBytes;
+	}
+
+	/**
+	 * @return the number of tasks evicted by the count limit
+	 */
+	public long getEvictedByCount() {
+		return this.evictedByCount;
+	}
+
+	/**
+	 * @param evictedByCount the evictedByCount to set
+	 */
+	public void setEvictedByCount(long evictedByCount) {
+		this.evictedByCount = evictedByCount;
+	}
+
+	/**
+	 * @return the number of tasks evicted by the age limit
+	 */
+	public long getEvictedByAge() {
+		return this.evictedByAge;
+	}
+
+	/**
+	 * @param evictedByAge the evictedByAge to set
+	 */
+	public void setEvictedByAge(long evictedByAge) {
+		this.evictedByAge = evictedByAge;
+	}
+
+	/**
+	 * @return the number of tasks evicted by the output bytes limit
+	 */
+	public long getEvictedByBytes() {
+		return this.evictedByBytes;
+	}
+
+	/**
+	 * @param evictedByBytes the evictedByBytes to set
+	 */
+	public void setEvictedByBytes(long evictedByBytes) {
+		this.evictedByBytes = evictedByBytes;
+	}
+
+	/**
+	 * @return the number of shell tasks executing
+	 */
+	public int getShellActive() {
+		return this.shellActive;
+	}
+
+	/**
+	 * @param shellActive the shellActive to set
+	 */
+	public void setShellActive(int shellActive) {
+		this.shellActive = shellActive;
+	}
+
+	/**
+	 * @return the number of shell tasks waiting for a worker
+	 */
+	public int getShellQueued() {
+		return this.shellQueued;
+	}
+
+	/**
+	 * @param shellQueued the shellQueued to set
+	 */
+	public void setShellQueued(int shellQueued) {
+		this.shellQueued = shellQueued;
+	}
+
+	/**
+	 * @return the number of shell tasks rejected
+	 */
+	public long getShellRejected() {
+		return this.shellRejected;
+	}
+
+	/**
+	 * @param shellRejected the shellRejected to set
+	 */
+	public void setShellRejected(long shellRejected) {
+		this.shellRejected = shellRejected;
+	}
+
+	/**
+	 * @return the number of transfers executing
+	 */
+	public int getXferActive() {
+		return this.xferActive;
+	}
+
+	/**
+	 * @param xferActive the xferActive to set
+	 */
+	public void setXferActive(int xferActive) {
+		this.xferActive = xferActive;
+	}
+
+	/**
+	 * @return the number of transfers waiting for a worker
+	 */
+	public int getXferQueued() {
+		return this.xferQueued;
+	}
+
+	/**
+	 * @param xferQueued the xferQueued to set
+	 */
+	public void setXferQueued(int xferQueued) {
+		this.xferQueued = xferQueued;
+	}
+
+	/**
+	 * @return the number of transfers rejected
+	 */
+	public long getXferRejected() {
+		return this.xferRejected;
+	}
+
+	/**
+	 * @param xferRejected the xferRejected to set
+	 */
+	public void setXferRejected(long xferRejected) {
+		this.xferRejected = xferRejected;
+	}
+
+	/**
+	 * @return the number of process input and output lines logged
+	 */
+	public long getIoLinesLogged() {
+		return this.ioLinesLogged;
+	}
+
+	/**
+	 * @param ioLinesLogged the ioLinesLogged to set
+	 */
+	public void setIoLinesLogged(long ioLinesLogged) {
+		this.ioLinesLogged = ioLinesLogged;
+	}
+
+	/**
+	 * @return the number of process input and output lines not logged by the processIoLog policy
+	 */
+	public long getIoLinesSuppressed() {
+		return this.ioLinesSuppressed;
+	}
+
+	/**
+	 * @param ioLinesSuppressed the ioLinesSuppressed to set
+	 */
+	public void setIoLinesSuppressed(long ioLinesSuppressed) {
+		this.ioLinesSuppressed = ioLinesSuppressed;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return String
+				.format("TaskStatistics [tasks=%s, running=%s, retainedBytes=%s, evictedByCount=%s, evictedByAge=%s, evictedByBytes=%s, shellActive=%s, shellQueued=%s, shellRejected=%s, xferActive=%s, xferQueued=%s, xferRejected=%s, ioLinesLogged=%s, ioLinesSuppressed=%s]",
+						this.tasks, this.running, this.retainedBytes,
+						this.evictedByCount, this.evictedByAge,
+						this.evictedByBytes, this.shellActive,
+						this.shellQueued, this.shellRejected,
+						this.xferActive, this.xferQueued, this.xferRejected,
+						this.ioLinesLogged, this.ioLinesSuppressed);
+	}
+
+}
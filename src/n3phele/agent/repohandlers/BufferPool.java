@@ -0,0 +1,203 @@
+/**
+ * @author Nigel Cook
+ *
+ * (C) Copyright 2010-2012. Nigel Cook. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * Licensed under the terms described in LICENSE file that accompanied this code, (the "License"); you may not use this file
+ * except in compliance with the License.
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ *  an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ */
+package n3phele.agent.repohandlers;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import n3phele.service.core.Resource;
+
+/** Transfer buffers shared by the repository handlers and zip streams, so that steady state
+ * transfers reuse buffers rather than allocating them per transfer, part or entry.
+ * <p>
+ * Buffers are pooled in power of two size classes from 4KB to bufferPoolMaxBuffer bytes, and a request
+ * is served from the smallest class that holds it, so a buffer may be larger than requested. Larger
+ * requests are allocated and discarded. At most bufferPoolMemory bytes of idle buffers are retained.
+ * <p>
+ * When bufferPoolDebug is set, the allocation point of each buffer is recorded. Buffers held longer than
+ * bufferPoolLeakAge seconds are logged as probable leaks, as are buffers released twice.
+ */
+public class BufferPool {
+	private static Logger log = Logger.getLogger(BufferPool.class.getName());
+	private final static int MIN_SHIFT = 12;
+	private final static int maxBuffer = Resource.get("bufferPoolMaxBuffer", 64*1024*1024);
+	private final static boolean debug = Resource.get("bufferPoolDebug", false);
+	private final static long leakAge = Resource.get("bufferPoolLeakAge", 600)*1000L;
+	private final static Pool<byte[]> heap = new Pool<byte[]>(Resource.get("bufferPoolMemory", 64*1024*1024L)) {
+		@Override
+		protected byte[] allocate(int size) {
+			return new byte[size];
+		}
+		@Override
+		protected int capacity(byte[] buffer) {
+			return buffer.length;
+		}
+	};
+	private final static Map<Object, Acquired> outstanding = new IdentityHashMap<Object, Acquired>();
+	private static long lastLeakCheck = System.currentTimeMillis();
+
+	private BufferPool() {}
+
+	/** Gets a heap buffer, which the caller should return with release
+	 * @param size minimum length
+	 * @return a buffer of at least size bytes
+	 */
+	public static byte[] acquire(int size) {
+		return track(heap.acquire(size));
+	}
+
+	/** Returns a heap buffer obtained from acquire to the pool
+	 * @param buffer the buffer, or null
+	 */
+	public static void release(byte[] buffer) {
+		if(buffer != null && untrack(buffer))
+			heap.release(buffer);
+	}
+
+	/**
+	 * @return the number of buffers allocated by the pool
+	 */
+	public static long getAllocated() {
+		return heap.allocated.get();
+	}
+
+	/**
+	 * @return the number of buffer requests served by a pooled buffer
+	 */
+	public static long getReused() {
+		return heap.reused.get();
+	}
+
+	/**
+	 * @return the bytes held by idle pooled buffers
+	 */
+	public static long getIdleBytes() {
+		return heap.idle.get();
+	}
+
+	/*
+	 * Size class index of a size, or -1 if the size is not pooled
+	 */
+	private static int sizeClass(int size) {
+		if(size > maxBuffer)
+			return -1;
+		int shift = MIN_SHIFT;
+		while((1 << shift) < size)
+			shift++;
+		return shift - MIN_SHIFT;
+	}
+
+	private static <T> T track(T buffer) {
+		if(debug) {
+			synchronized(outstanding) {
+				outstanding.put(buffer, new Acquired());
+				long now = System.currentTimeMillis();
+				if(now - lastLeakCheck > 60000) {
+					lastLeakCheck = now;
+					for(Map.Entry<Object, Acquired> i : outstanding.entrySet()) {
+						Acquired a = i.getValue();
+						if(!a.reported && now - a.time > leakAge) {
+							a.reported = true;
+							log.log(Level.WARNING, "Buffer held "+(now - a.time)/1000+" seconds, probable leak", a);
+						}
+					}
+				}
+			}
+		}
+		return buffer;
+	}
+
+	/*
+	 * @return false if the buffer is known not to be held
+	 */
+	private static boolean untrack(Object buffer) {
+		if(debug) {
+			synchronized(outstanding) {
+				if(outstanding.remove(buffer) == null) {
+					log.log(Level.WARNING, "Buffer released that is not held", new Throwable());
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Allocation point of a buffer in use
+	 */
+	private static class Acquired extends Throwable {
+		private static final long serialVersionUID = 1L;
+		final long time = System.currentTimeMillis();
+		boolean reported = false;
+		Acquired() {
+			super("Buffer acquired");
+		}
+	}
+
+	private static abstract class Pool<T> {
+		private final ArrayDeque<T>[] free;
+		private final long limit;
+		final AtomicLong idle = new AtomicLong(0);
+		final AtomicLong allocated = new AtomicLong(0);
+		final AtomicLong reused = new AtomicLong(0);
+
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		Pool(long limit) {
+			this.limit = limit;
+			this.free = new ArrayDeque[sizeClass(Math.max(maxBuffer, 1 << MIN_SHIFT)) + 1];
+			for(int i = 0; i < free.length; i++)
+				free[i] = new ArrayDeque<T>();
+		}
+
+		protected abstract T allocate(int size);
+		protected abstract int capacity(T buffer);
+
+		T acquire(int size) {
+			int c = sizeClass(size);
+			if(c < 0) {
+				allocated.incrementAndGet();
+				return allocate(size);
+			}
+			T result;
+			synchronized(free[c]) {
+				result = free[c].poll();
+			}
+			if(result != null) {
+				idle.addAndGet(-capacity(result));
+				reused.incrementAndGet();
+				return result;
+			}
+			allocated.incrementAndGet();
+			return allocate(1 << (c + MIN_SHIFT));
+		}
+
+		void release(T buffer) {
+			int size = capacity(buffer);
+			int c = sizeClass(size);
+			if(c < 0 || size != 1 << (c + MIN_SHIFT))
+				return; // not a pooled size
+			if(idle.addAndGet(size) > limit) {
+				idle.addAndGet(-size);
+				return;
+			}
+			synchronized(free[c]) {
+				free[c].push(buffer);
+			}
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/**
+ * @author Nigel Cook
+ *
+ * (C) Copyright 2010-2012. Nigel Cook. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * Licensed under the terms described in LICENSE file that accompanied this code, (the "License"); you may not use this file
+ * except in compliance with the License.
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ *  an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ */
+package n3phele.agent.repohandlers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Records the progress of a transfer to a repository, so that a failed transfer can resume
+ * from the content already stored rather than from the start.
+ * <p>
+ * The committed count is the length of the content prefix durably stored at the destination.
+ * A resumed transfer supplies the content from that offset. Stores that upload in parts also
+ * record the upload identifier and the result of each committed part, in part order.
+ */
+public class Checkpoint {
+	private long committed = 0;
+	private String uploadId = null;
+	private final List<String> parts = new ArrayList<String>();
+	private int started = 0;
+
+	/**
+	 * @return the length of the content stored
+	 */
+	public synchronized long getCommitted() {
+		return this.committed;
+	}
+
+	/** Records content appended to the destination
+	 * @param bytes
+	 */
+	public synchronized void advance(long bytes) {
+		this.committed += bytes;
+	}
+
+	/**
+	 * @return the identifier of the upload in progress, or null if none has started
+	 */
+	public synchronized String getUploadId() {
+		return this.uploadId;
+	}
+
+	/** Records the start of an upload in parts
+	 * @param uploadId
+	 */
+	public synchronized void begin(String uploadId) {
+		this.uploadId = uploadId;
+	}
+
+	/**
+	 * @return the results of the committed parts, in part order
+	 */
+	public synchronized List<String> getParts() {
+		return new ArrayList<String>(this.parts);
+	}
+
+	/**
+	 * @return the number of committed parts
+	 */
+	public synchronized int getPartCount() {
+		return this.parts.size();
+	}
+
+	/** Records the next part as stored
+	 * @param result part result used to complete the upload
+	 * @param bytes length of the part
+	 */
+	public synchronized void commit(String result, long bytes) {
+		this.parts.add(result);
+		this.committed += bytes;
+	}
+
+	/**
+	 * @return the highest part number started, including parts not committed
+	 */
+	public synchronized int getStarted() {
+		return this.started;
+	}
+
+	/**
+	 * @param partNumber a part number being uploaded
+	 */
+	public synchronized void started(int partNumber) {
+		this.started = Math.max(this.started, partNumber);
+	}
+
+	/** Discards the recorded progress, so that the transfer restarts from the beginning
+	 */
+	public synchronized void reset() {
+		this.committed = 0;
+		this.uploadId = null;
+		this.parts.clear();
+		this.started = 0;
+	}
+
+	/**
+	 * @return true if no content has been stored and no upload started
+	 */
+	public synchronized boolean isEmpty() {
+		return this.committed == 0 && this.uploadId == null;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public synchronized String toString() {
+		return String.format("Checkpoint [committed=%d, uploadId=%s, parts=%d, started=%d]",
+				committed, uploadId, parts.size(), started);
+	}
+}
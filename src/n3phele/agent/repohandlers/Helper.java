@@ -14,6 +14,29 @@
 package n3phele.agent.repohandlers;
 
 public class Helper {
+	/**
+	 * @param key
+	 * @return true if the key contains wildcard characters
+	 */
+	public static boolean isWildcard(String key) {
+		return key != null && (key.indexOf('*') != -1 || key.indexOf('?') != -1 || key.indexOf('{') != -1);
+	}
+	
+	/**
+	 * @param key a key containing wildcard characters
+	 * @return the leading path of the key preceding the first wildcard character, including the trailing /
+	 */
+	public static String wildcardBase(String key) {
+		int wildStart = key.length();
+		for(char c : new char[] { '*', '?', '{' }) {
+			int index = key.indexOf(c);
+			if(index != -1 && index < wildStart)
+				wildStart = index;
+		}
+		String base = key.substring(0, wildStart);
+		return base.substring(0, base.lastIndexOf("/")+1);
+	}
+	
 	public static String wildcardToRegex(String wildcard){
         StringBuffer s = new StringBuffer(wildcard.length());
         boolean alternation = false;
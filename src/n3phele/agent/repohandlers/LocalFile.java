@@ -13,29 +13,36 @@
  */
 package n3phele.agent.repohandlers;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
 import n3phele.agent.model.Origin;
+import n3phele.agent.model.Task;
+import n3phele.service.core.Resource;
 
 import com.amazonaws.services.s3.internal.Mimetypes;
 
 public class LocalFile implements Repo {
 	private static Logger log = Logger.getLogger(LocalFile.class.getName());
+	private final static boolean link = Resource.get("localLink", false);
+	private final static long transferChunk = Resource.get("localTransferChunk", 8*1024*1024L);
+	private final static int BUFFER = 256*1024;
 	private Long length = null;
 	private String encoding;
 	private String root;
@@ -77,38 +84,78 @@ public class LocalFile implements Repo {
        return new FileInputStream(file);
 	}
 	
+	/* (non-Javadoc)
+	 * @see n3phele.agent.repohandlers.Repo#getInputStream(long, long)
+	 */
+	@Override
+	public InputStream getInputStream(long offset, long length) throws IOException {
+		FileInputStream result = (FileInputStream) getInputStream();
+		result.getChannel().position(offset);
+		return result; // the caller reads no more than length bytes
+	}
 
 	/* (non-Javadoc)
-	 * @see n3phele.agent.repohandlers.Repo#put(java.lang.String, java.lang.String, java.io.InputStream, long, java.lang.String)
+	 * @see n3phele.agent.repohandlers.Repo#put(java.io.InputStream, long, java.lang.String)
 	 */
 	@Override
 	public Origin put(InputStream input, long length,
 			String encoding) throws IOException {
+		return put(input, length, encoding, null);
+	}
+
+	/** Writes the stream to the file. The content of a local file stream is moved by the kernel in
+	 * localTransferChunk transfers, any other stream is copied through a pooled buffer. A resumed put
+	 * appends to the content committed by the checkpoint.
+	 * @see n3phele.agent.repohandlers.Repo#put(java.io.InputStream, long, java.lang.String, n3phele.agent.repohandlers.Checkpoint)
+	 */
+	@Override
+	public Origin put(InputStream input, long length,
+			String encoding, Checkpoint checkpoint) throws IOException {
 		Origin result = new Origin(this.root+File.separator+this.key, 0, null, null);
 		File path = file.getCanonicalFile().getParentFile();
 		if(!path.exists()) {
 			path.mkdirs();
 		}
-		DataInputStream reader = new DataInputStream(input);
-		DataOutputStream writer = new DataOutputStream(new FileOutputStream(file));
-		byte[] buffer = new byte[8 * 4096];
+		FileChannel writer = open(checkpoint);
+		byte[] buffer = null;
 		try {
-			int len;
-			while ((len = reader.read(buffer)) != -1) {
-				writer.write(buffer, 0, len);
+			if(input instanceof FileInputStream) {
+				FileChannel reader = ((FileInputStream) input).getChannel();
+				long position = reader.position();
+				long n;
+				while((n = reader.transferTo(position, transferChunk, writer)) > 0) {
+					position += n;
+					if(checkpoint != null)
+						checkpoint.advance(n);
+				}
+				reader.position(position);
+			} else {
+				buffer = BufferPool.acquire(BUFFER);
+				int n;
+				while((n = readFully(input, buffer)) > 0) {
+					ByteBuffer content = ByteBuffer.wrap(buffer, 0, n);
+					while(content.hasRemaining()) {
+						writer.write(content);
+					}
+					if(checkpoint != null)
+						checkpoint.advance(n);
+				}
 			}
+			writer.close();
 			result.setLength(file.length());
 			result.setModified(new Date(file.lastModified()));
 		} catch (IOException e) {
 			log.log(Level.SEVERE, "File " + file.getCanonicalPath(), e);
 			throw e;
 		} finally {
+			if(buffer != null)
+				BufferPool.release(buffer);
 			try {
 				writer.close();
 			} catch (IOException e) {
 			} finally {	
 				try {
-					reader.close();
+					input.close();
 				} catch (IOException e) {				
 				} finally {
 					if(this.modificationTime != null) {
@@ -120,6 +167,137 @@ public class LocalFile implements Repo {
 		}
 		return result;
 	}
+	
+	/*
+	 * Fills the buffer unless the stream ends, so that checkpoints advance by whole buffers
+	 */
+	private static int readFully(InputStream input, byte[] buffer) throws IOException {
+		int count = 0;
+		int n;
+		while(count < buffer.length && (n = input.read(buffer, count, buffer.length - count)) != -1) {
+			count += n;
+		}
+		return count;
+	}
+	
+	/*
+	 * Opens the file for writing, positioned after the content committed by the checkpoint
+	 */
+	private FileChannel open(Checkpoint checkpoint) throws IOException {
+		long committed = checkpoint == null? 0 : checkpoint.getCommitted();
+		if(committed == 0)
+			return new FileOutputStream(file).getChannel();
+		if(file.length() < committed) {
+			checkpoint.reset();
+			throw new IOException("File "+file.getCanonicalPath()+" no longer holds the "+committed+" bytes transferred");
+		}
+		FileChannel result = new FileOutputStream(file, true).getChannel();
+		result.truncate(committed);
+		log.info("Resuming "+file.getCanonicalPath()+" at "+committed);
+		return result;
+	}
+	
+	/* 
+	 * Partial content is left in place, as a file being replaced has already been overwritten
+	 * @see n3phele.agent.repohandlers.Repo#discard(n3phele.agent.repohandlers.Checkpoint)
+	 */
+	@Override
+	public void discard(Checkpoint checkpoint) {
+		checkpoint.reset();
+	}
+
+
+	/** Copies a local file to this file. When localLink is set the file is hard linked to the source,
+	 * otherwise, or if the link cannot be made, the content is copied by the kernel using
+	 * FileChannel.transferTo in chunks of localTransferChunk bytes, reporting progress after each chunk.
+	 * A resumed copy continues after the content committed by the checkpoint.
+	 * @param source file copied
+	 * @param task task whose progress is reported, or null
+	 * @param total total bytes of all files sharing the progress count
+	 * @param shared count of bytes copied by all files contributing to the task progress, or null
+	 * @param checkpoint progress of the copy, or null
+	 * @return origin of the copy
+	 * @throws IOException
+	 */
+	public Origin copyFrom(LocalFile source, Task task, long total, AtomicLong shared, Checkpoint checkpoint) throws IOException {
+		Origin result = new Origin(this.root+File.separator+this.key, 0, null, null);
+		File path = file.getCanonicalFile().getParentFile();
+		if(!path.exists()) {
+			path.mkdirs();
+		}
+		if(shared == null)
+			shared = new AtomicLong(0);
+		if(link && link(source.file)) {
+			progress(task, source.file.length(), total, shared);
+			result.setLength(file.length());
+			result.setModified(new Date(file.lastModified()));
+			return result;
+		}
+		FileInputStream in = new FileInputStream(source.file);
+		FileChannel to = null;
+		try {
+			to = open(checkpoint);
+			FileChannel from = in.getChannel();
+			long size = from.size();
+			long position = checkpoint == null? 0 : checkpoint.getCommitted();
+			progress(task, position, total, shared);
+			while(position < size) {
+				long n = from.transferTo(position, Math.min(transferChunk, size - position), to);
+				if(n <= 0)
+					break; // source truncated during the copy
+				position += n;
+				if(checkpoint != null)
+					checkpoint.advance(n);
+				progress(task, n, total, shared);
+			}
+			to.close();
+			to = null;
+			result.setLength(file.length());
+			result.setModified(new Date(file.lastModified()));
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "File " + file.getCanonicalPath(), e);
+			throw e;
+		} finally {
+			try {
+				if(to != null) to.close();
+			} catch (IOException e) {
+			}
+			try {
+				in.close();
+			} catch (IOException e) {
+			}
+			if(this.modificationTime != null) {
+				file.setLastModified(this.modificationTime);
+				result.setModified(new Date(this.modificationTime()));
+			}
+		}
+		return result;
+	}
+	
+	/*
+	 * Replaces this file with a hard link to the source
+	 * @return false if the file system does not support the link
+	 */
+	private boolean link(File source) {
+		try {
+			Files.deleteIfExists(file.toPath());
+			Files.createLink(file.toPath(), source.toPath());
+			log.info("Linked "+file+" to "+source);
+			return true;
+		} catch (Exception e) {
+			log.info("Copying "+source+" as link failed "+e.toString());
+			return false;
+		}
+	}
+	
+	private static void progress(Task task, long count, long total, AtomicLong shared) {
+		if(task == null || total <= 0)
+			return;
+		long done = shared.addAndGet(count);
+		if(done > total)
+			done = total+1;
+		task.setProgress((int)(done*1000/total));
+	}
 
 
 	@Override
@@ -191,21 +369,26 @@ public class LocalFile implements Repo {
 		return file.isDirectory();
 	}
 	
+	/** Lists the files beneath a directory
+	 * @param dir
+	 * @param prefix prefix for the file names returned
+	 * @return map of file path, relative to dir and / separated, to file length
+	 */
 	public Map<String, Long> ls(File dir, String prefix) {
 		if(prefix == null || prefix.length() == 0) {
 			prefix = "";
-		} else if(!prefix.endsWith(File.pathSeparator)) {
-			prefix += File.pathSeparator;
+		} else if(!prefix.endsWith("/")) {
+			prefix += "/";
 		}
-		Map<String,Long> result = new HashMap<String,Long>();
+		Map<String,Long> result = new TreeMap<String,Long>();
 		File content[] = dir.listFiles();
 		if(content != null) {
 			for(File i : content) {
 				if(i.isDirectory()) {
-					result.putAll(ls(i, prefix+i.getName()+File.pathSeparator));
+					result.putAll(ls(i, prefix+i.getName()+"/"));
 				} else {
 					if(i.isFile()) {
-						result.put(i.getPath(),i.length());
+						result.put(prefix+i.getName(),i.length());
 					}
 				}
 			}
@@ -217,24 +400,13 @@ public class LocalFile implements Repo {
 	@Override
 	public List<String> getFileList() {
 		List<String> result = new ArrayList<String>();
-		int starIndex = key.indexOf("*");
-		int questionIndex = key.indexOf("?");
-		int curlyIndex = key.indexOf("{");
-		if(starIndex == -1 && questionIndex == -1 && curlyIndex == -1) {
+		if(!Helper.isWildcard(key)) {
 			this.totalLength = null;
 			return result; // not wildcard
 		}
-		
-		if(starIndex == -1) starIndex = Integer.MAX_VALUE;
-		if(questionIndex == -1) questionIndex = Integer.MAX_VALUE;
-		if(curlyIndex == -1) curlyIndex = Integer.MAX_VALUE;
-
-		int wildStart = Math.min(Math.min(starIndex, questionIndex), curlyIndex);
-
-		String base = key.substring(0, wildStart);
-		base = base.substring(0,base.lastIndexOf(File.pathSeparator)+1);
-		String wild = key.substring(base.lastIndexOf(File.pathSeparator)+1);
-		this.baseFile = new File(this.root+File.pathSeparator+base);
+		String base = Helper.wildcardBase(key);
+		String wild = key.substring(base.length());
+		this.baseFile = new File(this.root+File.separator+base);
 		Map<String,Long>ls = ls(this.baseFile, null);
 
 		Pattern pattern = Pattern.compile(Helper.wildcardToRegex(wild));
@@ -253,7 +425,8 @@ public class LocalFile implements Repo {
 
 	@Override
 	public void setNextFile(String file) {
-		this.file = new File(this.baseFile.getPath()+File.pathSeparator+file);
+		this.file = new File(this.baseFile.getPath()+File.separator+file);
+		this.length = null;
 	}
 
 
@@ -263,4 +436,9 @@ public class LocalFile implements Repo {
 			this.totalLength = getLength();
 		return this.totalLength;
 	}
+
+
+	@Override
+	public void close() {
+	}
 }
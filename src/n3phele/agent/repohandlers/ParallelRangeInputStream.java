@@ -0,0 +1,268 @@
+/**
+ * @author Nigel Cook
+ *
+ * (C) Copyright 2010-2012. Nigel Cook. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * Licensed under the terms described in LICENSE file that accompanied this code, (the "License"); you may not use this file
+ * except in compliance with the License.
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ *  an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ */
+package n3phele.agent.repohandlers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import n3phele.service.core.Resource;
+
+/** Reads an object as a sequence of byte ranges fetched concurrently, presented as one ordered stream.
+ * <p>
+ * The object is divided into parts of partSize bytes. Up to concurrency parts are fetched ahead of the
+ * reader, each into its own BufferPool buffer, so at most concurrency * partSize bytes are held per stream. The
+ * fetches of all streams share rangePoolSize threads, and wait for a thread when all are busy. Parts
+ * completing out of order wait for the reader to reach them. A failed part fetch is retried before the
+ * failure is reported to the reader.
+ */
+public class ParallelRangeInputStream extends InputStream {
+	private static Logger log = Logger.getLogger(ParallelRangeInputStream.class.getName());
+	private final static int RETRIES = 2;
+	private final static int poolSize = Math.max(1, Resource.get("rangePoolSize", 16));
+	private final static ThreadPoolExecutor pool = new ThreadPoolExecutor(poolSize, poolSize, 60L, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger(1);
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Range-"+count.getAndIncrement());
+					t.setDaemon(true);
+					return t;
+				}});
+	static {
+		pool.allowCoreThreadTimeOut(true);
+	}
+
+	/** A source of byte ranges of an object
+	 */
+	public interface RangeSource {
+		/** Opens a stream on a range of the object
+		 * @param start offset of the first byte
+		 * @param end offset of the last byte, inclusive
+		 * @return the content of the range
+		 * @throws IOException
+		 */
+		InputStream open(long start, long end) throws IOException;
+	}
+
+	private final RangeSource source;
+	private final String name;
+	private final long length;
+	private final int partSize;
+	private final int concurrency;
+	private final LinkedList<Future<byte[]>> ahead = new LinkedList<Future<byte[]>>();
+	private long nextFetch = 0;	// offset of the next part to be requested
+	private long position = 0;	// offset in the object of the next byte returned
+	private byte[] part = null;
+	private int partLength = 0;
+	private int partOffset = 0;
+	private boolean closed = false;
+
+	/**
+	 * @param source the object
+	 * @param name object name, for logging
+	 * @param length object length
+	 * @param partSize bytes fetched by each range request
+	 * @param concurrency maximum range requests in progress
+	 */
+	public ParallelRangeInputStream(RangeSource source, String name, long length, int partSize, int concurrency) {
+		this.source = source;
+		this.name = name;
+		this.length = length;
+		this.partSize = Math.max(1, partSize);
+		this.concurrency = Math.max(1, concurrency);
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int n = read(b, 0, 1);
+		return n <= 0 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(closed)
+			throw new IOException("Stream closed");
+		if(len == 0)
+			return 0;
+		if(!fill())
+			return -1;
+		int n = Math.min(len, partLength - partOffset);
+		System.arraycopy(part, partOffset, b, off, n);
+		partOffset += n;
+		position += n;
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return part == null ? 0 : partLength - partOffset;
+	}
+
+	/** Skips by repositioning the stream. Parts already fetched beyond the new position are kept, and
+	 * skipped parts not yet fetched are never requested.
+	 * @see java.io.InputStream#skip(long)
+	 */
+	@Override
+	public long skip(long n) throws IOException {
+		if(n <= 0 || closed)
+			return 0;
+		long target = Math.min(length, position + n);
+		long skipped = target - position;
+		if(part != null && target < position + (partLength - partOffset)) {
+			partOffset += (int) skipped;
+			position = target;
+			return skipped;
+		}
+		// discard the current part and any fetched parts that end before target
+		long partEnd = position + (part == null ? 0 : partLength - partOffset);
+		BufferPool.release(part);
+		part = null;
+		while(!ahead.isEmpty() && partEnd + partSize <= target) {
+			discard(ahead.removeFirst());
+			partEnd += partSize;
+		}
+		if(ahead.isEmpty()) {
+			partEnd = target - (target % partSize);
+			nextFetch = partEnd;
+		}
+		position = partEnd;
+		if(target > position) {
+			// the remainder lies within the next part
+			if(fill()) {
+				partOffset = (int)(target - position);
+				position = target;
+			}
+		}
+		return skipped;
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		BufferPool.release(part);
+		part = null;
+		for(Future<byte[]> f : ahead)
+			discard(f);
+		ahead.clear();
+	}
+
+	/*
+	 * Ensures the current part has unread bytes, waiting for the next part if needed
+	 * @return false at end of stream
+	 */
+	private boolean fill() throws IOException {
+		while(part == null || partOffset >= partLength) {
+			BufferPool.release(part);
+			part = null;
+			request();
+			if(ahead.isEmpty())
+				return false;
+			try {
+				part = ahead.removeFirst().get();
+				partLength = (int) Math.min(partSize, length - position);
+				partOffset = 0;
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted reading "+name);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if(cause instanceof IOException)
+					throw (IOException) cause;
+				throw new IOException("Read of "+name+" failed", cause);
+			}
+			request();
+		}
+		return true;
+	}
+
+	/*
+	 * Requests parts until concurrency parts are outstanding
+	 */
+	private void request() {
+		while(ahead.size() < concurrency && nextFetch < length) {
+			final long start = nextFetch;
+			final long end = Math.min(length, start + partSize) - 1;
+			nextFetch = end + 1;
+			ahead.add(pool.submit(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws Exception {
+					return fetch(start, end);
+				}}));
+		}
+	}
+
+	/*
+	 * Cancels a part fetch, returning its buffer to the pool if the fetch has completed
+	 */
+	private static void discard(Future<byte[]> f) {
+		if(!f.cancel(true) && !f.isCancelled()) {
+			try {
+				BufferPool.release(f.get());
+			} catch (Exception e) {
+			}
+		}
+	}
+
+	private byte[] fetch(long start, long end) throws IOException {
+		int size = (int)(end - start + 1);
+		byte[] result = BufferPool.acquire(size);
+		try {
+			return fetch(start, end, result, size);
+		} catch (IOException e) {
+			BufferPool.release(result);
+			throw e;
+		} catch (RuntimeException e) {
+			BufferPool.release(result);
+			throw e;
+		}
+	}
+
+	private byte[] fetch(long start, long end, byte[] result, int size) throws IOException {
+		for(int attempt = 0; ; attempt++) {
+			InputStream in = null;
+			try {
+				in = source.open(start, end);
+				int count = 0;
+				int n;
+				while(count < size && (n = in.read(result, count, size - count)) != -1) {
+					count += n;
+				}
+				if(count < size)
+					throw new IOException("Range "+start+"-"+end+" of "+name+" truncated at "+count+" bytes");
+				return result;
+			} catch (IOException e) {
+				if(attempt >= RETRIES || Thread.currentThread().isInterrupted())
+					throw e;
+				log.warning("Retrying range "+start+"-"+end+" of "+name+" "+e.getMessage());
+			} finally {
+				if(in != null) {
+					try {
+						in.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		}
+	}
+}
@@ -24,8 +24,36 @@ public interface Repo {
 	public abstract InputStream getInputStream()
 			throws IOException;
 
+	/**
+	 * @param offset offset of the first byte returned
+	 * @param length number of bytes required
+	 * @return the content from offset, of at least length bytes or to the end
+	 * @throws IOException
+	 */
+	public abstract InputStream getInputStream(long offset, long length)
+			throws IOException;
+
 	public abstract Origin put(InputStream input,
 			long length, String encoding) throws IOException;
+
+	/** Stores the stream content, recording the content stored in the checkpoint. If the checkpoint
+	 * records stored content, the transfer is resumed and the stream supplies the content from the
+	 * committed offset. If the stored content can no longer be resumed the checkpoint is reset and the
+	 * put fails, so that a retry transfers the content from the start.
+	 * @param input
+	 * @param length
+	 * @param encoding
+	 * @param checkpoint progress of the transfer
+	 * @return the stored content
+	 * @throws IOException
+	 */
+	public abstract Origin put(InputStream input,
+			long length, String encoding, Checkpoint checkpoint) throws IOException;
+
+	/** Removes partial content left by a failed transfer that will not be resumed
+	 * @param checkpoint progress of the transfer
+	 */
+	public void discard(Checkpoint checkpoint);
 	
 	/**
 	 * @return the length
@@ -49,5 +77,11 @@ public interface Repo {
 
 	public long getTotalLength();
 	
+	/**
+	 * Releases connections held by the repository. Streams obtained from the repository
+	 * should be closed first.
+	 */
+	public void close();
+	
 
 }
\ No newline at end of file
@@ -0,0 +1,188 @@
+/**
+ * @author Nigel Cook
+ *
+ * (C) Copyright 2010-2012. Nigel Cook. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * Licensed under the terms described in LICENSE file that accompanied this code, (the "License"); you may not use this file
+ * except in compliance with the License.
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ *  an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ */
+package n3phele.agent.repohandlers;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.logging.Logger;
+
+import n3phele.service.core.Resource;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.transfer.TransferManager;
+
+/** S3 clients shared by transfers using the same credentials and endpoint, so that connections
+ * and their TLS sessions are reused across transfers.
+ * <p>
+ * Clients are reference counted. A client no longer in use is kept for s3ClientIdle seconds, and
+ * at most s3ClientCacheSize unused clients are kept, least recently used being shut down first.
+ * Clients in use are never shut down. Idle clients are shut down by sweep, which the agent runs
+ * periodically, as well as when clients are acquired or released.
+ * <p>
+ * Clients are found by a SHA-256 digest of their credentials and endpoint, so the secret key is not
+ * held in the cache.
+ */
+public class S3ClientCache {
+	private static Logger log = Logger.getLogger(S3ClientCache.class.getName());
+	private final static int maxEntries = Resource.get("s3ClientCacheSize", 16);
+	private final static long maxIdle = Resource.get("s3ClientIdle", 300)*1000L;
+	private final static LinkedHashMap<String, Client> cache = new LinkedHashMap<String, Client>(16, 0.75f, true);
+
+	private S3ClientCache() {}
+
+	/** A shared S3 client and the transfer manager built on it
+	 */
+	public static class Client {
+		private final String endpoint;
+		private final AmazonS3Client s3;
+		private TransferManager tm = null;
+		private int users = 0;
+		private long lastUsed = System.currentTimeMillis();
+
+		private Client(AWSCredentials credentials, String endpoint) {
+			this.endpoint = endpoint;
+			this.s3 = new AmazonS3Client(credentials);
+			this.s3.setEndpoint(endpoint);
+		}
+
+		/**
+		 * @return the S3 client
+		 */
+		public AmazonS3Client getS3() {
+			return this.s3;
+		}
+
+		/**
+		 * @return the transfer manager, created on first use
+		 */
+		public synchronized TransferManager getTransferManager() {
+			if(this.tm == null)
+				this.tm = new TransferManager(this.s3);
+			return this.tm;
+		}
+
+		private synchronized void shutdown() {
+			if(this.tm != null)
+				this.tm.shutdownNow();
+			else
+				this.s3.shutdown();
+		}
+	}
+
+	/** Gets a client for the given credentials and endpoint, which the caller must release
+	 * @param credentials
+	 * @param endpoint
+	 * @return the client
+	 */
+	public static Client acquire(AWSCredentials credentials, String endpoint) {
+		String cacheKey = cacheKey(credentials, endpoint);
+		Client result;
+		List<Client> expired;
+		synchronized(cache) {
+			result = cache.get(cacheKey);
+			if(result == null) {
+				result = new Client(credentials, endpoint);
+				cache.put(cacheKey, result);
+			}
+			result.users++;
+			expired = expire();
+		}
+		shutdown(expired);
+		return result;
+	}
+
+	/** Releases a client obtained from acquire
+	 * @param client
+	 */
+	public static void release(Client client) {
+		List<Client> expired;
+		synchronized(cache) {
+			client.users--;
+			client.lastUsed = System.currentTimeMillis();
+			expired = expire();
+		}
+		shutdown(expired);
+	}
+
+	/** Shuts down clients idle for longer than s3ClientIdle
+	 */
+	public static void sweep() {
+		List<Client> expired;
+		synchronized(cache) {
+			expired = expire();
+		}
+		shutdown(expired);
+	}
+
+	/**
+	 * @return the number of clients held
+	 */
+	public static int size() {
+		synchronized(cache) {
+			return cache.size();
+		}
+	}
+
+	private static String cacheKey(AWSCredentials credentials, String endpoint) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			for(String s : new String[] { credentials.getAWSAccessKeyId(), credentials.getAWSSecretKey(), endpoint }) {
+				digest.update(String.valueOf(s).getBytes("UTF-8"));
+				digest.update((byte) 0);
+			}
+			StringBuilder result = new StringBuilder();
+			for(byte b : digest.digest())
+				result.append(String.format("%02x", b & 0xff));
+			return result.toString();
+		} catch (Exception e) {
+			throw new IllegalStateException("SHA-256 unavailable", e);
+		}
+	}
+
+	/*
+	 * Removes unused clients past their idle time, or in excess of the cache size
+	 */
+	private static List<Client> expire() {
+		List<Client> result = new ArrayList<Client>();
+		long horizon = System.currentTimeMillis() - maxIdle;
+		int unused = 0;
+		for(Client c : cache.values()) {
+			if(c.users == 0)
+				unused++;
+		}
+		for(Iterator<Client> i = cache.values().iterator(); i.hasNext(); ) {
+			Client c = i.next();
+			if(c.users == 0 && (c.lastUsed < horizon || unused > maxEntries)) {
+				i.remove();
+				result.add(c);
+				unused--;
+			}
+		}
+		return result;
+	}
+
+	private static void shutdown(List<Client> clients) {
+		for(Client c : clients) {
+			log.info("Shutting down S3 client for "+c.endpoint);
+			try {
+				c.shutdown();
+			} catch (Exception e) {
+			}
+		}
+	}
+}
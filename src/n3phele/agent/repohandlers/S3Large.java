@@ -13,17 +13,21 @@
  */
 package n3phele.agent.repohandlers;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
 import n3phele.agent.model.Origin;
+import n3phele.service.core.Resource;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
@@ -35,19 +39,23 @@ import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
-import com.amazonaws.services.s3.transfer.TransferManager;
 import com.amazonaws.services.s3.transfer.Upload;
 
 public class S3Large implements Repo {
 	private static Logger log = Logger.getLogger(S3Large.class.getName());
+	private final static int partSize = Resource.get("s3PartSize", 8*1024*1024);
+	private final static int concurrency = Resource.get("s3Concurrency", 4);
+	private final static long parallelThreshold = Resource.get("s3ParallelThreshold", 2L*partSize);
+	private final static long multipartThreshold = Resource.get("s3MultipartThreshold", 2L*partSize);
 	private AWSCredentials credentials;
 	private Long length = null;
 	private String encoding;
 	private String root;
 	private String key;
-	private AmazonS3Client s3 = null;
-	private S3Object object = null;
+	private S3ClientCache.Client client = null;
 	private ObjectMetadata objectMetadata = null;
+	private Date lastModified = null;
+	private Map<String, S3ObjectSummary> listed = null;
 	private Long modificationTime = null;
 	private Long totalLength = null;
 	private String base = null;
@@ -66,33 +74,101 @@ public class S3Large implements Repo {
 		this.description = description;
 	}
 	
+	/** Opens the object content. Objects of at least s3ParallelThreshold bytes are read as
+	 * s3PartSize ranges, with up to s3Concurrency ranges fetched at once.
+	 * @see n3phele.agent.repohandlers.Repo#getInputStream()
+	 */
 	public InputStream getInputStream() throws IOException {	
 
-		 this.encoding = objectMetadata().getContentType();
-         log.info("Input: "+source+"/"+root+"/"+key+" Content-Type: "  + this.encoding + "length: " + length );
-         return new DataInputStream(object().getObjectContent());
+		 long size = getLength();
+         if(concurrency > 1 && size >= parallelThreshold) {
+        	 this.encoding = objectMetadata().getContentType();
+        	 log.info("Input: "+source+"/"+root+"/"+key+" Content-Type: "  + this.encoding + "length: " + size );
+        	 return ranges(0, size);
+         }
+         S3Object object = s3().getObject(new GetObjectRequest(this.root, this.key));
+         this.encoding = object.getObjectMetadata().getContentType();
+         log.info("Input: "+source+"/"+root+"/"+key+" Content-Type: "  + this.encoding + "length: " + size );
+         return new DataInputStream(object.getObjectContent());
+	}
+	
+	/** Opens a byte range of the object using ranged GETs. Ranges of at least s3ParallelThreshold
+	 * bytes are read as s3PartSize ranges fetched concurrently.
+	 * @see n3phele.agent.repohandlers.Repo#getInputStream(long, long)
+	 */
+	public InputStream getInputStream(long offset, long length) throws IOException {
+		long size = getLength();
+		long end = Math.min(size, offset + length);
+		if(offset == 0 && end == size)
+			return getInputStream();
+		if(offset >= end)
+			return new ByteArrayInputStream(new byte[0]);
+		log.info("Input: "+source+"/"+root+"/"+key+" range " + offset + "-" + (end - 1));
+		if(concurrency > 1 && end - offset >= parallelThreshold)
+			return ranges(offset, end - offset);
+		GetObjectRequest request = new GetObjectRequest(this.root, this.key);
+		request.setRange(offset, end - 1);
+		S3Object object = s3().getObject(request);
+		this.encoding = object.getObjectMetadata().getContentType();
+		return new DataInputStream(object.getObjectContent());
+	}
+	
+	/*
+	 * Reads a range of the object as s3PartSize ranges fetched concurrently
+	 */
+	private InputStream ranges(final long offset, long length) {
+		final String root = this.root;
+		final String key = this.key;
+		return new ParallelRangeInputStream(new ParallelRangeInputStream.RangeSource() {
+			@Override
+			public InputStream open(long start, long end) throws IOException {
+				GetObjectRequest request = new GetObjectRequest(root, key);
+				request.setRange(offset + start, offset + end);
+				try {
+					return s3().getObject(request).getObjectContent();
+				} catch (AmazonClientException e) {
+					throw new IOException(e.getMessage(), e);
+				}
+			}}, root+"/"+key, length, partSize, concurrency);
+	}
+	
+	/* (non-Javadoc)
+	 * @see n3phele.agent.repohandlers.Repo#put(java.io.InputStream, long, java.lang.String)
+	 */
+	public Origin put(InputStream input, long length, String encoding) throws IOException {
+		return put(input, length, encoding, null);
 	}
 	
-	public Origin put(InputStream input, long length, String encoding)  {
+	/** Stores the stream content as the object. Content of unknown length, given as 0 or less, or
+	 * of at least s3MultipartThreshold bytes is streamed as a multipart upload of s3PartSize parts,
+	 * which resumes from the last part recorded by the checkpoint.
+	 * @see n3phele.agent.repohandlers.Repo#put(java.io.InputStream, long, java.lang.String, n3phele.agent.repohandlers.Checkpoint)
+	 */
+	public Origin put(InputStream input, long length, String encoding, Checkpoint checkpoint) throws IOException {
 		Origin result = new Origin(source+"/"+root+"/"+key, 0, null, null);
-		TransferManager  tm = null;
 		try {
-			tm = new TransferManager(this.credentials);
-			tm.getAmazonS3Client().setEndpoint(source.toString());
-			
-			objectMetadata = new ObjectMetadata();
-			objectMetadata.setContentLength(this.length = length);
+			ObjectMetadata metadata = new ObjectMetadata();
 			this.encoding = encoding;
 			if(encoding != null)
-				objectMetadata.setContentType(this.encoding);
+				metadata.setContentType(this.encoding);
 	        log.info("Output: "+source+"/"+root+"/"+key+" Content-Type: "  + encoding  + "length: " + length );
-			Upload upload = tm.upload(root, key, input, objectMetadata);
-			upload.waitForCompletion();
+	        if(length <= 0 || length >= multipartThreshold) {
+	        	length = new S3StreamingUpload(s3(), root, key, metadata, partSize, concurrency).upload(input, checkpoint);
+	        } else {
+	        	metadata.setContentLength(length);
+	        	s3();
+	        	Upload upload = client.getTransferManager().upload(root, key, input, metadata);
+	        	upload.waitForCompletion();
+	        }
+	        this.length = length;
 			// PutObjectResult object = s3().putObject(root, key, input, objectMetadata);
 	        result.setLength(length);
-	        ObjectMetadata od = s3().getObjectMetadata(root, key);
-	        result.setModified(od.getLastModified());
+	        this.objectMetadata = s3().getObjectMetadata(root, key);
+	        this.lastModified = this.objectMetadata.getLastModified();
+	        result.setModified(this.lastModified);
 		} catch (AmazonServiceException e) {
+			if(checkpoint != null && "NoSuchUpload".equals(e.getErrorCode()))
+				checkpoint.reset(); // upload aborted or expired, so restart
 			throw e;
 		} catch (AmazonClientException e) {
 			throw e;
@@ -103,14 +179,6 @@ public class S3Large implements Repo {
 				input.close();
 			} catch (IOException e) {
 			} 
-			try {
-				tm.shutdownNow();
-			} catch (Exception e) {
-			} 
-			try {
-				s3().shutdown();
-			} catch (Exception e) {
-			} 
 		}
 		return result;
     
@@ -133,34 +201,43 @@ public class S3Large implements Repo {
 	@Override
 	public long modificationTime() {
 		
-		Date lastModified = objectMetadata().getLastModified();
+		if(this.lastModified == null)
+			this.lastModified = objectMetadata().getLastModified();
 		return lastModified==null?new Date().getTime():lastModified.getTime();
 	}
 
-	private AmazonS3Client s3() {
-		if(this.s3 == null) {
-			this.s3 = new AmazonS3Client(this.credentials);
-			this.s3.setEndpoint(source.toString());
-		}
-		return this.s3;
+	/** Aborts the multipart upload recorded by the checkpoint
+	 * @see n3phele.agent.repohandlers.Repo#discard(n3phele.agent.repohandlers.Checkpoint)
+	 */
+	@Override
+	public void discard(Checkpoint checkpoint) {
+		new S3StreamingUpload(s3(), root, key, new ObjectMetadata(), partSize, concurrency).discard(checkpoint);
+	}
+
+	private synchronized AmazonS3Client s3() {
+		if(this.client == null) 
+			this.client = S3ClientCache.acquire(this.credentials, source.toString());
+		return this.client.getS3();
 	}
 	
-	
-	private S3Object object() {
-		S3Object result;
-		if(this.object == null) {
-			this.object = s3().getObject(new GetObjectRequest(this.root, this.key));
-			result = this.object;
-		} else {
-			result = this.object;
-			this.object = null;
+	/* 
+	 * @see n3phele.agent.repohandlers.Repo#close()
+	 */
+	@Override
+	public synchronized void close() {
+		if(this.client != null) {
+			S3ClientCache.release(this.client);
+			this.client = null;
 		}
-		return result;
 	}
 	
+	
+	/*
+	 * Object metadata, fetched by HEAD request and held for the current object
+	 */
 	private ObjectMetadata objectMetadata() {
 		if(this.objectMetadata == null) 
-			this.objectMetadata = object().getObjectMetadata();
+			this.objectMetadata = s3().getObjectMetadata(this.root, this.key);
 		return this.objectMetadata;
 	}
 	
@@ -171,7 +248,7 @@ public class S3Large implements Repo {
 	 */
 	public long getLength() {
 		if(this.length == null)
-			this.length = object().getObjectMetadata().getContentLength();
+			this.length = objectMetadata().getContentLength();
 		return length;
 	}
 	
@@ -214,25 +291,15 @@ public class S3Large implements Repo {
 	@Override
 	public List<String> getFileList() {
 		List<String> result = new ArrayList<String>();
-		int starIndex = key.indexOf("*");
-		int questionIndex = key.indexOf("?");
-		int curlyIndex = key.indexOf("{");
-		if(starIndex == -1 && questionIndex == -1 && curlyIndex == -1) {
+		if(!Helper.isWildcard(key)) {
 			this.totalLength = null;
 			return result; // not wildcard
 		}
-		
-		if(starIndex == -1) starIndex = Integer.MAX_VALUE;
-		if(questionIndex == -1) questionIndex = Integer.MAX_VALUE;
-		if(curlyIndex == -1) curlyIndex = Integer.MAX_VALUE;
-
-		int wildStart = Math.min(Math.min(starIndex, questionIndex), curlyIndex);
-
-		base = key.substring(0, wildStart);
-		base = base.substring(0,base.lastIndexOf("/")+1);
+		base = Helper.wildcardBase(key);
 		// String wild = key.substring(base.lastIndexOf("/")+1);
 		boolean done = false;
 		this.totalLength = 0L;
+		this.listed = new HashMap<String, S3ObjectSummary>();
 		Pattern pattern = Pattern.compile("^"+Helper.wildcardToRegex(key));
 		ObjectListing listing = s3().listObjects(this.root, base);
 		while(!done) {
@@ -242,6 +309,7 @@ public class S3Large implements Repo {
 				if(pattern.matcher(f.getKey()).matches()) {
 					String file = f.getKey().substring(base.length());
 					result.add(file);
+					this.listed.put(file, f);
 					this.totalLength += f.getSize();
 					log.info("Adding "+file+" size "+f.getSize());
 				}
@@ -253,19 +321,21 @@ public class S3Large implements Repo {
 		return result;
 	}
 
+	/** Selects a file from the listing. The size and modification time reported by the listing
+	 * are used, so no further request is needed for them.
+	 * @see n3phele.agent.repohandlers.Repo#setNextFile(java.lang.String)
+	 */
 	@Override
 	public void setNextFile(String file) {
 		this.key = base + file;	
-		if(this.objectMetadata != null)
-			this.objectMetadata = null;
-		if(this.object != null) {
-			try {
-				this.object.getObjectContent().close();
-			} catch (IOException e) {
-				// ignore
-			}
+		this.objectMetadata = null;
+		this.length = null;
+		this.lastModified = null;
+		S3ObjectSummary summary = this.listed == null? null : this.listed.get(file);
+		if(summary != null) {
+			this.length = summary.getSize();
+			this.lastModified = summary.getLastModified();
 		}
-		this.object = null;
 	}
 
 	@Override
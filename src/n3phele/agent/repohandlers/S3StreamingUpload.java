@@ -0,0 +1,94 @@
+/**
+ * @author Nigel Cook
+ *
+ * (C) Copyright 2010-2012. Nigel Cook. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * Licensed under the terms described in LICENSE file that accompanied this code, (the "License"); you may not use this file
+ * except in compliance with the License.
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ *  an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ */
+package n3phele.agent.repohandlers;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+/** Uploads a stream of unknown length to S3 as a multipart upload, without buffering the object.
+ * A failed upload is aborted, so no parts are left stored.
+ */
+public class S3StreamingUpload extends StreamingUpload<PartETag> {
+	private final static int MIN_PART = 5*1024*1024;
+	private final static int MAX_PARTS = 10000;
+
+	private final AmazonS3 s3;
+	private final String bucket;
+	private final String key;
+	private final ObjectMetadata metadata;
+
+	/**
+	 * @param s3 client
+	 * @param bucket
+	 * @param key
+	 * @param metadata object metadata, without content length
+	 * @param partSize bytes per part, at least the S3 minimum of 5MB
+	 * @param concurrency maximum parts uploaded at once
+	 */
+	public S3StreamingUpload(AmazonS3 s3, String bucket, String key, ObjectMetadata metadata, int partSize, int concurrency) {
+		super(bucket+"/"+key, Math.max(MIN_PART, partSize), MAX_PARTS, concurrency);
+		this.s3 = s3;
+		this.bucket = bucket;
+		this.key = key;
+		this.metadata = metadata;
+	}
+
+	@Override
+	protected void single(byte[] buffer, int len) {
+		metadata.setContentLength(len);
+		s3.putObject(bucket, key, new ByteArrayInputStream(buffer, 0, len), metadata);
+	}
+
+	@Override
+	protected String begin() {
+		return s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key, metadata)).getUploadId();
+	}
+
+	@Override
+	protected PartETag part(int partNumber, byte[] buffer, int len) {
+		UploadPartRequest request = new UploadPartRequest()
+			.withBucketName(bucket).withKey(key).withUploadId(uploadId)
+			.withPartNumber(partNumber).withPartSize(len)
+			.withInputStream(new ByteArrayInputStream(buffer, 0, len));
+		return s3.uploadPart(request).getPartETag();
+	}
+
+	@Override
+	protected void complete(List<PartETag> parts) {
+		s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, parts));
+	}
+
+	@Override
+	protected void abort(int partCount) {
+		s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+	}
+
+	@Override
+	protected String save(PartETag part) {
+		return part.getETag();
+	}
+
+	@Override
+	protected PartETag restore(int partNumber, String saved) {
+		return new PartETag(partNumber, saved);
+	}
+}
@@ -0,0 +1,358 @@
+/**
+ * @author Nigel Cook
+ *
+ * (C) Copyright 2010-2012. Nigel Cook. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * Licensed under the terms described in LICENSE file that accompanied this code, (the "License"); you may not use this file
+ * except in compliance with the License.
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ *  an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ */
+package n3phele.agent.repohandlers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import n3phele.service.core.Resource;
+
+/** Uploads a stream of unknown length as a sequence of parts, without buffering the object.
+ * <p>
+ * The stream is read into part buffers of partSize bytes, and up to concurrency parts are uploaded
+ * at once. A fixed set of concurrency + 1 buffers from the BufferPool is recycled between parts, so
+ * reading the stream waits while all buffers are being uploaded. The parts of all uploads share
+ * uploadPoolSize threads, and wait for a thread when all are busy. A stream shorter than one part is sent as a single
+ * object. If the upload fails it is aborted, so that no parts are left stored, unless its progress is
+ * recorded in a Checkpoint, in which case it can be resumed from the last part stored.
+ *
+ * @param <P> the result of a part upload, used to complete the upload
+ */
+public abstract class StreamingUpload<P> {
+	private static Logger log = Logger.getLogger(StreamingUpload.class.getName());
+	private final static int poolSize = Math.max(1, Resource.get("uploadPoolSize", 16));
+	private final static ThreadPoolExecutor pool = new ThreadPoolExecutor(poolSize, poolSize, 60L, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger(1);
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Part-"+count.getAndIncrement());
+					t.setDaemon(true);
+					return t;
+				}});
+	static {
+		pool.allowCoreThreadTimeOut(true);
+	}
+
+	protected final String name;
+	private final int partSize;
+	private final int maxParts;
+	private final int concurrency;
+	private final ArrayBlockingQueue<byte[]> free;
+	private int allocated = 0;
+	private boolean finished = false;
+	private final List<Future<P>> parts = new ArrayList<Future<P>>();
+	private int firstPart = 1;
+	private Checkpoint checkpoint = null;
+	private final Map<Integer, Stored> pending = new HashMap<Integer, Stored>();
+	protected String uploadId = null;
+
+	/**
+	 * @param name object name, for logging
+	 * @param partSize bytes per part
+	 * @param maxParts maximum number of parts
+	 * @param concurrency maximum parts uploaded at once
+	 */
+	protected StreamingUpload(String name, int partSize, int maxParts, int concurrency) {
+		this.name = name;
+		this.partSize = Math.max(1, partSize);
+		this.maxParts = maxParts;
+		this.concurrency = Math.max(1, concurrency);
+		this.free = new ArrayBlockingQueue<byte[]>(this.concurrency + 1);
+	}
+
+	/** Stores content shorter than one part as a single object
+	 */
+	protected abstract void single(byte[] buffer, int len) throws IOException;
+
+	/** Starts an upload in parts
+	 * @return the upload identifier
+	 */
+	protected abstract String begin() throws IOException;
+
+	/** Stores one part. Called concurrently for different parts.
+	 * @param partNumber the part number, from 1
+	 */
+	protected abstract P part(int partNumber, byte[] buffer, int len) throws IOException;
+
+	/** Completes an upload once all parts are stored
+	 * @param parts part results in part number order
+	 */
+	protected abstract void complete(List<P> parts) throws IOException;
+
+	/** Discards the stored parts of a failed upload
+	 * @param partCount the number of parts started
+	 */
+	protected abstract void abort(int partCount) throws Exception;
+
+	/** Converts a part result to the form recorded in a checkpoint
+	 */
+	protected abstract String save(P part);
+
+	/** Converts a part result recorded in a checkpoint back to the part result
+	 */
+	protected abstract P restore(int partNumber, String saved);
+
+	/** Uploads the stream content as the object
+	 * @param input
+	 * @return the number of bytes uploaded
+	 * @throws IOException if the stream cannot be read or the upload fails
+	 */
+	public long upload(InputStream input) throws IOException {
+		return upload(input, null);
+	}
+
+	/** Uploads the stream content as the object, recording the parts stored in the checkpoint. If the
+	 * checkpoint records an upload in progress, that upload is resumed, and the stream supplies the content
+	 * from the committed offset. A failed upload with a checkpoint is not aborted, so that it can be
+	 * resumed, or discarded.
+	 * @param input
+	 * @param checkpoint progress of the upload, or null
+	 * @return the length of the content
+	 * @throws IOException if the stream cannot be read or the upload fails
+	 */
+	public long upload(InputStream input, Checkpoint checkpoint) throws IOException {
+		this.checkpoint = checkpoint;
+		try {
+			return send(input);
+		} finally {
+			finish();
+		}
+	}
+
+	/** Discards the parts stored by a failed upload recorded in a checkpoint
+	 * @param checkpoint
+	 */
+	public void discard(Checkpoint checkpoint) {
+		if(checkpoint.getUploadId() == null)
+			return;
+		this.uploadId = checkpoint.getUploadId();
+		try {
+			abort(checkpoint.getStarted());
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Abort of upload to "+name+" failed", e);
+		}
+		checkpoint.reset();
+	}
+
+	private long send(InputStream input) throws IOException {
+		List<P> results = new ArrayList<P>();
+		long total = 0;
+		byte[] buffer = null;	// the buffer being filled, until it is handed to a part upload
+		try {
+			buffer = nextBuffer();
+			int len = readFully(input, buffer, partSize);
+			if(checkpoint != null && checkpoint.getUploadId() != null) {
+				this.uploadId = checkpoint.getUploadId();
+				for(String saved : checkpoint.getParts()) {
+					results.add(restore(results.size()+1, saved));
+				}
+				total = checkpoint.getCommitted();
+				firstPart = results.size()+1;
+				log.info("Resuming "+name+" at part "+firstPart+" offset "+total);
+			} else if(len < partSize) {
+				single(buffer, len);
+				return len;
+			} else {
+				this.uploadId = begin();
+				if(checkpoint != null)
+					checkpoint.begin(this.uploadId);
+			}
+
+			try {
+				while(len > 0) {
+					int partNumber = firstPart + parts.size();
+					if(partNumber > maxParts)
+						throw new IOException("Upload of "+name+" exceeds "+maxParts+" parts of "+partSize+" bytes");
+					submit(partNumber, buffer, len);
+					buffer = null;
+					total += len;
+					if(len < partSize)
+						break;
+					buffer = nextBuffer();
+					len = readFully(input, buffer, partSize);
+				}
+				for(Future<P> part : parts) {
+					results.add(result(part));
+				}
+				complete(results);
+				log.info("Uploaded "+name+" "+total+" bytes in "+results.size()+" parts");
+				return total;
+			} catch (IOException e) {
+				cancel();
+				throw e;
+			} catch (RuntimeException e) {
+				cancel();
+				throw e;
+			}
+		} finally {
+			if(buffer != null)
+				recycle(buffer);
+		}
+	}
+
+	private void submit(final int partNumber, final byte[] buffer, final int len) {
+		if(checkpoint != null)
+			checkpoint.started(partNumber);
+		final AtomicBoolean claimed = new AtomicBoolean(false);
+		FutureTask<P> task = new FutureTask<P>(new Callable<P>() {
+			@Override
+			public P call() throws Exception {
+				if(!claimed.compareAndSet(false, true))
+					return null; // cancelled while queued
+				try {
+					P result = part(partNumber, buffer, len);
+					stored(partNumber, result, len);
+					return result;
+				} finally {
+					recycle(buffer);
+				}
+			}}) {
+			@Override
+			protected void done() {
+				// a part cancelled while waiting for a thread never runs, so its buffer is returned here
+				if(isCancelled() && claimed.compareAndSet(false, true))
+					recycle(buffer);
+			}
+		};
+		parts.add(task);
+		pool.execute(task);
+	}
+
+	/*
+	 * Gets a free part buffer, waiting for a part upload to complete if all are in use
+	 */
+	private byte[] nextBuffer() throws IOException {
+		byte[] result = free.poll();
+		if(result == null && allocated < concurrency + 1) {
+			allocated++;
+			return BufferPool.acquire(partSize);
+		}
+		try {
+			while(result == null) {
+				result = free.poll(1, TimeUnit.SECONDS);
+				for(Future<P> part : parts) {
+					if(part.isDone())
+						result(part); // report a failed part without waiting for others
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("Upload of "+name+" interrupted");
+		}
+		return result;
+	}
+
+	private P result(Future<P> part) throws IOException {
+		try {
+			return part.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Upload of "+name+" interrupted");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IOException("Upload of "+name+" failed", cause);
+		}
+	}
+
+	/*
+	 * Records a stored part in the checkpoint once all parts before it are stored
+	 */
+	private synchronized void stored(int partNumber, P result, int len) {
+		if(checkpoint == null)
+			return;
+		pending.put(partNumber, new Stored(result, len));
+		for(Stored next = pending.remove(checkpoint.getPartCount()+1); next != null; next = pending.remove(checkpoint.getPartCount()+1)) {
+			checkpoint.commit(save(next.result), next.len);
+		}
+	}
+
+	private class Stored {
+		final P result;
+		final int len;
+		Stored(P result, int len) {
+			this.result = result;
+			this.len = len;
+		}
+	}
+
+	/*
+	 * Stops a failed upload. An upload with a checkpoint lets the parts in progress finish, so that
+	 * they are recorded for resumption, otherwise the parts are cancelled and the upload aborted.
+	 */
+	private void cancel() {
+		if(checkpoint != null) {
+			for(Future<P> part : parts) {
+				try {
+					part.get();
+				} catch (Exception e) {
+				}
+			}
+			return;
+		}
+		for(Future<P> part : parts)
+			part.cancel(true);
+		try {
+			abort(firstPart + parts.size() - 1);
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Abort of upload to "+name+" failed", e);
+		}
+	}
+
+	/*
+	 * Returns a buffer for reuse by the next part, or to the pool once the upload has finished
+	 */
+	private synchronized void recycle(byte[] buffer) {
+		if(finished)
+			BufferPool.release(buffer);
+		else
+			free.add(buffer);
+	}
+
+	/*
+	 * Returns the free buffers to the pool. Buffers of parts still being cancelled are returned
+	 * when the part ends.
+	 */
+	private synchronized void finish() {
+		finished = true;
+		for(byte[] buffer = free.poll(); buffer != null; buffer = free.poll())
+			BufferPool.release(buffer);
+	}
+
+	private static int readFully(InputStream input, byte[] buffer, int length) throws IOException {
+		int count = 0;
+		int n;
+		while(count < length && (n = input.read(buffer, count, length - count)) != -1) {
+			count += n;
+		}
+		return count;
+	}
+}
@@ -14,26 +14,44 @@
 
 package n3phele.agent.repohandlers;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 import n3phele.agent.model.Origin;
+import n3phele.service.core.Resource;
 
 import org.jclouds.blobstore.BlobStoreContext;
 import org.jclouds.blobstore.BlobStoreContextFactory;
+import org.jclouds.blobstore.domain.PageSet;
 import org.jclouds.hpcloud.objectstorage.HPCloudObjectStorageClient;
+import org.jclouds.http.options.GetOptions;
 import org.jclouds.openstack.swift.domain.MutableObjectInfoWithMetadata;
+import org.jclouds.openstack.swift.domain.ObjectInfo;
 import org.jclouds.openstack.swift.domain.SwiftObject;
+import org.jclouds.openstack.swift.options.ListContainerOptions;
+import org.jclouds.rest.RestContext;
 
 public class Swift implements Repo {
 private static Logger log = Logger.getLogger(Swift.class.getName());
+private final static int partSize = Resource.get("swiftPartSize", 32*1024*1024);
+private final static int concurrency = Resource.get("swiftConcurrency", 4);
+private final static long parallelThreshold = Resource.get("swiftParallelThreshold", 2L*partSize);
+private final static long segmentThreshold = Resource.get("swiftSegmentThreshold", 2L*partSize);
+private final static int maxContexts = Resource.get("swiftContextCacheSize", 8);
+private final static int LIST_PAGE = 1000;
 private String accessKey;
 private String secretKey;
 private Long length = null;
@@ -42,6 +60,9 @@ private String root;
 private String key;
 private MutableObjectInfoWithMetadata objectMetadata = null;
 private Long totalLength = null;
+private String base = null;
+private Map<String, ObjectInfo> listed = null;
+private Context context = null;
 private URI source;
 private String kind;
 String tag;
@@ -59,29 +80,92 @@ private long modificationTime=0;
 		this.description = description;
 	}
 
+	/** Opens the object content. Objects of at least swiftParallelThreshold bytes are read as
+	 * swiftPartSize ranges, with up to swiftConcurrency ranges fetched at once.
+	 * @see n3phele.agent.repohandlers.Repo#getInputStream()
+	 */
 	@Override
 	public InputStream getInputStream() throws IOException {
-		 this.encoding = objectMetadata().getContentType();
-         log.info("Input: "+source+"/"+root+"/"+key+" Content-Type: "  + this.encoding + "length: " + length );
+		 long size = getLength();
+		 if(this.encoding == null)
+			 this.encoding = objectMetadata().getContentType();
+         log.info("Input: "+source+"/"+root+"/"+key+" Content-Type: "  + this.encoding + "length: " + size );
+         if(concurrency > 1 && size >= parallelThreshold)
+        	 return ranges(0, size);
          return new DataInputStream(getJcloudsContext().getObject(this.root, this.key).getPayload().getInput());
 	}
 
+	/** Opens a byte range of the object using ranged GETs. Ranges of at least swiftParallelThreshold
+	 * bytes are read as swiftPartSize ranges fetched concurrently.
+	 * @see n3phele.agent.repohandlers.Repo#getInputStream(long, long)
+	 */
+	@Override
+	public InputStream getInputStream(long offset, long length) throws IOException {
+		long size = getLength();
+		long end = Math.min(size, offset + length);
+		if(offset == 0 && end == size)
+			return getInputStream();
+		if(offset >= end)
+			return new ByteArrayInputStream(new byte[0]);
+		if(this.encoding == null)
+			this.encoding = objectMetadata().getContentType();
+		log.info("Input: "+source+"/"+root+"/"+key+" range " + offset + "-" + (end - 1));
+		if(concurrency > 1 && end - offset >= parallelThreshold)
+			return ranges(offset, end - offset);
+		return new DataInputStream(getJcloudsContext().getObject(this.root, this.key, GetOptions.Builder.range(offset, end - 1)).getPayload().getInput());
+	}
+
+	/*
+	 * Reads a range of the object as swiftPartSize ranges fetched concurrently
+	 */
+	private InputStream ranges(final long offset, long length) {
+		final HPCloudObjectStorageClient swift = getJcloudsContext();
+		final String root = this.root;
+		final String key = this.key;
+		return new ParallelRangeInputStream(new ParallelRangeInputStream.RangeSource() {
+			@Override
+			public InputStream open(long start, long end) throws IOException {
+				try {
+					return swift.getObject(root, key, GetOptions.Builder.range(offset + start, offset + end)).getPayload().getInput();
+				} catch (RuntimeException e) {
+					throw new IOException(e.getMessage(), e);
+				}
+			}}, root+"/"+key, length, partSize, concurrency);
+	}
+
 	@Override
 	public Origin put(InputStream input, long length, String encoding)
 			throws IOException {
+		return put(input, length, encoding, null);
+	}
+
+	/** Stores the stream content as the object. Content of unknown length, given as 0 or less, or of at
+	 * least swiftSegmentThreshold bytes is uploaded as swiftPartSize segments joined by a manifest, which
+	 * resumes from the last segment recorded by the checkpoint.
+	 * @see n3phele.agent.repohandlers.Repo#put(java.io.InputStream, long, java.lang.String, n3phele.agent.repohandlers.Checkpoint)
+	 */
+	@Override
+	public Origin put(InputStream input, long length, String encoding, Checkpoint checkpoint)
+			throws IOException {
 		Origin result = new Origin(source+"/"+root+"/"+key, 0, null, null);
 		try {
 			HPCloudObjectStorageClient swift = getJcloudsContext();
-			SwiftObject objectDefn = swift.newSwiftObject();
-			objectDefn.getInfo().setName(key);
-			objectDefn.setPayload(input);
-			objectDefn.getInfo().setBytes(length);
-			objectDefn.getInfo().setContentType(encoding);
-			if(modificationTime != 0)
-				objectDefn.getInfo().setLastModified(new Date(modificationTime));
-			swift.putObject(this.root, objectDefn);
+			if(length <= 0 || length >= segmentThreshold) {
+				length = new SwiftSegmentedUpload(getRestContext(), this.root, this.key, encoding, partSize, concurrency).upload(input, checkpoint);
+			} else {
+				SwiftObject objectDefn = swift.newSwiftObject();
+				objectDefn.getInfo().setName(key);
+				objectDefn.setPayload(input);
+				objectDefn.getInfo().setBytes(length);
+				objectDefn.getInfo().setContentType(encoding);
+				if(modificationTime != 0)
+					objectDefn.getInfo().setLastModified(new Date(modificationTime));
+				swift.putObject(this.root, objectDefn);
+			}
 			this.objectMetadata = swift.getObjectInfo(this.root, this.key);
-			result.setLength(this.objectMetadata.getBytes());
+			this.length = length;
+			this.encoding = encoding;
+			result.setLength(length);
 			result.setModified(this.objectMetadata.getLastModified());
 		} finally {
 			try {
@@ -92,6 +176,14 @@ private long modificationTime=0;
 		return result;
 	}
 
+	/** Removes the segments stored by the upload recorded in the checkpoint
+	 * @see n3phele.agent.repohandlers.Repo#discard(n3phele.agent.repohandlers.Checkpoint)
+	 */
+	@Override
+	public void discard(Checkpoint checkpoint) {
+		new SwiftSegmentedUpload(getRestContext(), this.root, this.key, null, partSize, concurrency).discard(checkpoint);
+	}
+
 	@Override
 	public long getLength() {
 		if(this.length == null)
@@ -132,16 +224,69 @@ private long modificationTime=0;
 	}
 
 
+	/** Lists the objects matching the wildcard key, a page of objects sharing the key prefix at a time
+	 * @see n3phele.agent.repohandlers.Repo#getFileList()
+	 */
 	@Override
 	public List<String> getFileList() throws Exception {
-		// TODO Auto-generated method stub
-		return null;
+		List<String> result = new ArrayList<String>();
+		if(!Helper.isWildcard(key)) {
+			this.totalLength = null;
+			return result; // not wildcard
+		}
+		base = Helper.wildcardBase(key);
+		Pattern pattern = Pattern.compile("^"+Helper.wildcardToRegex(key));
+		HPCloudObjectStorageClient swift = getJcloudsContext();
+		this.listed = new HashMap<String, ObjectInfo>();
+		this.totalLength = 0L;
+		String marker = null;
+		do {
+			ListContainerOptions options = ListContainerOptions.Builder.withPrefix(base).maxResults(LIST_PAGE);
+			if(marker != null)
+				options.afterMarker(marker);
+			PageSet<ObjectInfo> page = swift.listObjects(this.root, options);
+			marker = null;
+			for(ObjectInfo f : page) {
+				marker = f.getName();
+				if(pattern.matcher(f.getName()).matches()) {
+					String file = f.getName().substring(base.length());
+					if(f.getBytes() == null || f.getBytes() == 0) {
+						ObjectInfo head = swift.getObjectInfo(this.root, f.getName()); // a segmented object is listed as its empty manifest
+						if(head != null)
+							f = head;
+					}
+					result.add(file);
+					this.listed.put(file, f);
+					this.totalLength += f.getBytes() == null? 0 : f.getBytes();
+					log.info("Adding "+file+" size "+f.getBytes());
+				}
+			}
+			if(page.size() < LIST_PAGE)
+				marker = null;
+		} while(marker != null);
+		Collections.sort(result);
+		return result;
 	}
 
+	/** Selects a file from the listing. The size, type and modification time reported by the listing
+	 * are used, so no further request is needed for them. Objects listed as empty were read with a HEAD,
+	 * so that segmented objects report their full length.
+	 * @see n3phele.agent.repohandlers.Repo#setNextFile(java.lang.String)
+	 */
 	@Override
 	public void setNextFile(String file) throws Exception {
-		// TODO Auto-generated method stub
-		
+		this.key = base + file;
+		this.objectMetadata = null;
+		this.length = null;
+		this.encoding = null;
+		this.modificationTime = 0;
+		ObjectInfo info = this.listed == null? null : this.listed.get(file);
+		if(info != null) {
+			this.length = info.getBytes();
+			this.encoding = info.getContentType();
+			if(info.getLastModified() != null)
+				this.modificationTime = info.getLastModified().getTime();
+		}
 	}
 
 	@Override
@@ -151,26 +296,85 @@ private long modificationTime=0;
 		return this.totalLength;
 	}
 	
-	private final static Map<String, BlobStoreContext> contextMap = new HashMap<String, BlobStoreContext>();
+	@Override
+	public synchronized void close() {
+		if(this.context != null) {
+			release(this.context);
+			this.context = null;
+		}
+	}
+	
+	/*
+	 * Contexts are shared by transfers using the same credentials. At most swiftContextCacheSize
+	 * unused contexts are kept, least recently used being closed first.
+	 */
+	private final static Map<String, Context> contextMap = new LinkedHashMap<String, Context>(16, 0.75f, true);
+	private static class Context {
+		final BlobStoreContext context;
+		int users = 0;
+		Context(BlobStoreContext context) {
+			this.context = context;
+		}
+	}
+	
 	private HPCloudObjectStorageClient getJcloudsContext() {
+		return getRestContext().getApi();
+	}
 
-		BlobStoreContext context;
-		String cacheKey = this.accessKey+"#"+this.secretKey;
+	private synchronized RestContext<HPCloudObjectStorageClient, ?> getRestContext() {
+		if(this.context == null)
+			this.context = acquire(this.accessKey+"#"+this.secretKey);
+		return this.context.context.getProviderSpecificContext();
+	}
+	
+	private Context acquire(String cacheKey) {
+		List<Context> unused = new ArrayList<Context>();
+		Context result;
 		synchronized(contextMap) {
-			context = contextMap.get(cacheKey);
+			result = contextMap.get(cacheKey);
+			if(result == null) {
+				result = new Context(new BlobStoreContextFactory().createContext("hpcloud-objectstorage", this.accessKey, this.secretKey));
+				contextMap.put(cacheKey, result);
+			}
+			result.users++;
+			expire(unused);
 		}
-		if(context != null) {
-			return HPCloudObjectStorageClient.class.cast(context.getProviderSpecificContext().getApi());
-		}
-
-
-		context = new BlobStoreContextFactory().createContext("hpcloud-objectstorage", this.accessKey, this.secretKey);
-		
-		HPCloudObjectStorageClient client = HPCloudObjectStorageClient.class.cast(context.getProviderSpecificContext().getApi());
+		closeAll(unused);
+		return result;
+	}
+	
+	private static void release(Context context) {
+		List<Context> unused = new ArrayList<Context>();
 		synchronized(contextMap) {
-			contextMap.put(cacheKey, context);
+			context.users--;
+			expire(unused);
+		}
+		closeAll(unused);
+	}
+	
+	private static void expire(List<Context> expired) {
+		int unused = 0;
+		for(Context c : contextMap.values()) {
+			if(c.users == 0)
+				unused++;
+		}
+		for(Iterator<Context> i = contextMap.values().iterator(); i.hasNext() && unused > maxContexts; ) {
+			Context c = i.next();
+			if(c.users == 0) {
+				i.remove();
+				expired.add(c);
+				unused--;
+			}
+		}
+	}
+	
+	private static void closeAll(List<Context> contexts) {
+		for(Context c : contexts) {
+			try {
+				c.context.close();
+			} catch (Exception e) {
+			}
 		}
-		return client;
 	}
 
 	private MutableObjectInfoWithMetadata objectMetadata() {
@@ -0,0 +1,218 @@
+/**
+ * @author Nigel Cook
+ *
+ * (C) Copyright 2010-2012. Nigel Cook. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * Licensed under the terms described in LICENSE file that accompanied this code, (the "License"); you may not use this file
+ * except in compliance with the License.
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ *  an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ */
+package n3phele.agent.repohandlers;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jclouds.blobstore.domain.PageSet;
+import org.jclouds.http.HttpRequest;
+import org.jclouds.http.HttpRequestFilter;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.io.Payloads;
+import org.jclouds.openstack.filters.AuthenticateRequest;
+import org.jclouds.openstack.swift.CommonSwiftClient;
+import org.jclouds.openstack.swift.Storage;
+import org.jclouds.openstack.swift.domain.MutableObjectInfoWithMetadata;
+import org.jclouds.openstack.swift.domain.ObjectInfo;
+import org.jclouds.openstack.swift.domain.SwiftObject;
+import org.jclouds.openstack.swift.options.ListContainerOptions;
+import org.jclouds.rest.RestContext;
+import org.jclouds.util.Strings2;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.TypeLiteral;
+
+/** Uploads a stream of unknown length to Swift as a segmented (dynamic large) object. Segments are
+ * stored as <i>name</i>/<i>upload id</i>/<i>segment number</i> in the container <i>container</i>_segments,
+ * as the Swift tools do, so that listings of the container show only the object. They are joined by a
+ * manifest object named <i>name</i> whose prefix is <i>name</i>/<i>upload id</i>/, so that neither other
+ * objects sharing the name as a prefix nor segments of earlier uploads are joined. The manifest records
+ * its segment prefix in its metadata, and the segments of the object it replaces are removed once
+ * the new object is stored. The segments of a failed upload are removed.
+ */
+public class SwiftSegmentedUpload extends StreamingUpload<String> {
+	private static Logger log = Logger.getLogger(SwiftSegmentedUpload.class.getName());
+	private final static int MAX_SEGMENTS = 10000;
+	private final static int LIST_PAGE = 1000;
+	private final static String SEGMENTS = "segments";
+
+	private final RestContext<? extends CommonSwiftClient, ?> context;
+	private final CommonSwiftClient swift;
+	private final String container;
+	private final String segments;
+	private final String key;
+	private final String contentType;
+
+	/**
+	 * @param context client context
+	 * @param container
+	 * @param key
+	 * @param contentType
+	 * @param segmentSize bytes per segment
+	 * @param concurrency maximum segments uploaded at once
+	 */
+	public SwiftSegmentedUpload(RestContext<? extends CommonSwiftClient, ?> context, String container, String key,
+			String contentType, int segmentSize, int concurrency) {
+		super(container+"/"+key, segmentSize, MAX_SEGMENTS, concurrency);
+		this.context = context;
+		this.swift = context.getApi();
+		this.container = container;
+		this.segments = container+"_segments";
+		this.key = key;
+		this.contentType = contentType;
+	}
+
+	@Override
+	protected void single(byte[] buffer, int len) {
+		String replaced = previousSegments();
+		swift.putObject(container, object(key, buffer, len));
+		removeSegments(replaced);
+	}
+
+	@Override
+	protected String begin() {
+		swift.createContainer(segments);
+		return UUID.randomUUID().toString();
+	}
+
+	@Override
+	protected String part(int partNumber, byte[] buffer, int len) {
+		return swift.putObject(segments, object(segment(partNumber), buffer, len));
+	}
+
+	@Override
+	protected void complete(List<String> parts) {
+		String replaced = previousSegments();
+		putManifest(prefix());
+		if(!prefix().equals(replaced))
+			removeSegments(replaced);
+	}
+
+	@Override
+	protected void abort(int partCount) {
+		for(int i = 1; i <= partCount; i++) {
+			try {
+				swift.removeObject(segments, segment(i));
+			} catch (Exception e) {
+				// segment not stored
+			}
+		}
+	}
+
+	@Override
+	protected String save(String part) {
+		return part;
+	}
+
+	@Override
+	protected String restore(int partNumber, String saved) {
+		return saved;
+	}
+
+	private String prefix() {
+		return key+"/"+uploadId+"/";
+	}
+
+	private String segment(int partNumber) {
+		return String.format("%s%08d", prefix(), partNumber);
+	}
+
+	/*
+	 * Stores the manifest joining the objects named with the prefix, recording the prefix in its
+	 * metadata. The client API only stores a manifest whose prefix is its own name, so the request
+	 * is made directly, with the endpoint and authentication of the client.
+	 */
+	private void putManifest(String prefix) {
+		Injector injector = context.utils().injector();
+		URI storage = injector.getInstance(Key.get(new TypeLiteral<Supplier<URI>>(){}, Storage.class)).get();
+		HttpRequest request = HttpRequest.builder().method("PUT")
+				.endpoint(URI.create(storage+"/"+Strings2.urlEncode(container)+"/"+Strings2.urlEncode(key, '/')))
+				.filters(ImmutableList.<HttpRequestFilter>of(injector.getInstance(AuthenticateRequest.class)))
+				.headers(ImmutableMultimap.of("X-Object-Manifest", Strings2.urlEncode(segments+"/"+prefix, '/'),
+						"X-Object-Meta-"+SEGMENTS, prefix))
+				.payload(Payloads.newByteArrayPayload(new byte[0]))
+				.build();
+		if(contentType != null)
+			request.getPayload().getContentMetadata().setContentType(contentType);
+		HttpResponse response = context.utils().http().invoke(request);
+		if(response.getStatusCode() / 100 != 2)
+			throw new HttpResponseException("Manifest of "+container+"/"+key+" not stored", null, response);
+	}
+
+	/*
+	 * Returns the segment prefix recorded by the manifest currently stored as the object, if any
+	 */
+	private String previousSegments() {
+		try {
+			MutableObjectInfoWithMetadata info = swift.getObjectInfo(container, key);
+			if(info != null) {
+				for(Map.Entry<String, String> meta : info.getMetadata().entrySet()) {
+					if(SEGMENTS.equalsIgnoreCase(meta.getKey()))
+						return meta.getValue();
+				}
+			}
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Manifest of "+container+"/"+key+" not read", e);
+		}
+		return null;
+	}
+
+	/*
+	 * Removes the segments of a replaced object. Failures are logged, leaving the segments unused.
+	 */
+	private void removeSegments(String prefix) {
+		if(prefix == null || !prefix.startsWith(key+"/") || !prefix.endsWith("/"))
+			return;
+		try {
+			String marker = null;
+			do {
+				ListContainerOptions options = ListContainerOptions.Builder.withPrefix(prefix).maxResults(LIST_PAGE);
+				if(marker != null)
+					options.afterMarker(marker);
+				PageSet<ObjectInfo> page = swift.listObjects(segments, options);
+				marker = null;
+				for(ObjectInfo segment : page) {
+					marker = segment.getName();
+					swift.removeObject(segments, segment.getName());
+				}
+				if(page.size() < LIST_PAGE)
+					marker = null;
+			} while(marker != null);
+			log.info("Removed replaced segments "+segments+"/"+prefix);
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Replaced segments "+segments+"/"+prefix+" not removed", e);
+		}
+	}
+
+	private SwiftObject object(String name, byte[] buffer, int len) {
+		SwiftObject result = swift.newSwiftObject();
+		result.getInfo().setName(name);
+		result.getInfo().setContentType(contentType);
+		result.getInfo().setBytes((long) len);
+		result.setPayload(new ByteArrayInputStream(buffer, 0, len));
+		result.getPayload().getContentMetadata().setContentLength((long) len);
+		return result;
+	}
+}
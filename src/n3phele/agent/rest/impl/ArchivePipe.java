@@ -0,0 +1,251 @@
+/**
+ * @author Nigel Cook
+ *
+ * (C) Copyright 2010-2012. Nigel Cook. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * Licensed under the terms described in LICENSE file that accompanied this code, (the "License"); you may not use this file
+ * except in compliance with the License.
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ *  an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ */
+package n3phele.agent.rest.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import n3phele.agent.repohandlers.BufferPool;
+
+/** Connects a thread writing an archive to a thread storing it, through a bounded queue of BufferPool
+ * buffers, so that the archive is never held in full.
+ * <p>
+ * The writer closes the output stream when the archive is complete. A writer that fails calls fail
+ * instead, so that the reader sees an error rather than the end of a truncated archive. A reader that
+ * fails closes the input stream, so that the writer fails on its next write rather than waiting.
+ */
+public class ArchivePipe {
+	private final static int CHUNK = 64*1024;
+	private final static Chunk END = new Chunk(new byte[0], 0);
+
+	private final ArrayBlockingQueue<Chunk> queue;
+	private final PipeOutputStream out = new PipeOutputStream();
+	private final InputStream in = new PipeInputStream();
+	private volatile Exception failure = null;
+	private volatile boolean reported = false;
+	private volatile boolean readerClosed = false;
+
+	/**
+	 * @param size bytes buffered between the writer and the reader
+	 */
+	public ArchivePipe(int size) {
+		this.queue = new ArrayBlockingQueue<Chunk>(Math.max(2, size/CHUNK));
+	}
+
+	/**
+	 * @return the stream written by the writer
+	 */
+	public OutputStream getOutputStream() {
+		return this.out;
+	}
+
+	/**
+	 * @return the stream read by the reader
+	 */
+	public InputStream getInputStream() {
+		return this.in;
+	}
+
+	/** Ends the archive with an error, reported to the reader once it has read the content already written.
+	 * Later writes fail.
+	 * @param e the writer failure
+	 */
+	public void fail(Exception e) {
+		this.failure = e;
+		out.abandon();
+		try {
+			send(END);
+		} catch (IOException ignore) {
+		}
+	}
+
+	/**
+	 * @return true if the reader has been given the writer failure
+	 */
+	public boolean isReported() {
+		return this.reported;
+	}
+
+	/*
+	 * Queues a chunk for the reader, waiting for space. Content written after the reader has
+	 * closed its stream is discarded, and fails the writer unless it is the end of the archive.
+	 */
+	private void send(Chunk chunk) throws IOException {
+		boolean sent = false;
+		try {
+			while(!readerClosed && !(sent = queue.offer(chunk, 1, TimeUnit.SECONDS)))
+				;
+		} catch (InterruptedException e) {
+			if(chunk != END)
+				BufferPool.release(chunk.data);
+			throw new IOException("Archive write interrupted");
+		}
+		if(readerClosed) {
+			if(!sent && chunk != END)
+				BufferPool.release(chunk.data);
+			drain();
+			if(chunk != END)
+				throw new IOException("Archive reader closed");
+		}
+	}
+
+	private void drain() {
+		for(Chunk chunk = queue.poll(); chunk != null; chunk = queue.poll()) {
+			if(chunk != END)
+				BufferPool.release(chunk.data);
+		}
+	}
+
+	private static class Chunk {
+		final byte[] data;
+		final int length;
+		Chunk(byte[] data, int length) {
+			this.data = data;
+			this.length = length;
+		}
+	}
+
+	private class PipeOutputStream extends OutputStream {
+		private byte[] buffer = null;
+		private int count = 0;
+		private boolean closed = false;
+
+		@Override
+		public void write(int b) throws IOException {
+			if(closed)
+				throw new IOException("Stream closed");
+			if(buffer == null || count == buffer.length)
+				next();
+			buffer[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if(closed)
+				throw new IOException("Stream closed");
+			while(len > 0) {
+				if(buffer == null || count == buffer.length)
+					next();
+				int n = Math.min(len, buffer.length - count);
+				System.arraycopy(b, off, buffer, count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if(buffer != null && count > 0) {
+				Chunk chunk = new Chunk(buffer, count);
+				buffer = null;
+				count = 0;
+				send(chunk);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if(!closed) {
+				closed = true;
+				try {
+					flush();
+					send(END);
+				} finally {
+					BufferPool.release(buffer);
+					buffer = null;
+				}
+			}
+		}
+
+		/*
+		 * Closes the stream without ending the archive
+		 */
+		void abandon() {
+			closed = true;
+			BufferPool.release(buffer);
+			buffer = null;
+			count = 0;
+		}
+
+		private void next() throws IOException {
+			flush();
+			buffer = BufferPool.acquire(CHUNK);
+		}
+	}
+
+	private class PipeInputStream extends InputStream {
+		private Chunk chunk = null;
+		private int position = 0;
+
+		@Override
+		public int read() throws IOException {
+			if(!fill())
+				return -1;
+			return chunk.data[position++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(len == 0)
+				return 0;
+			if(!fill())
+				return -1;
+			int n = Math.min(len, chunk.length - position);
+			System.arraycopy(chunk.data, position, b, off, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			readerClosed = true;
+			if(chunk != null && chunk != END)
+				BufferPool.release(chunk.data);
+			chunk = END;
+			drain();
+		}
+
+		/*
+		 * Ensures the current chunk has unread bytes, waiting for the writer if needed
+		 * @return false at the end of the archive
+		 */
+		private boolean fill() throws IOException {
+			if(readerClosed)
+				throw new IOException("Stream closed");
+			while(chunk != END && (chunk == null || position == chunk.length)) {
+				if(chunk != null)
+					BufferPool.release(chunk.data);
+				try {
+					chunk = queue.take();
+				} catch (InterruptedException e) {
+					chunk = null;
+					throw new IOException("Archive read interrupted");
+				}
+				position = 0;
+			}
+			if(chunk == END) {
+				if(failure != null) {
+					reported = true;
+					throw new IOException("Archive creation failed: "+failure.getMessage(), failure);
+				}
+				return false;
+			}
+			return true;
+		}
+	}
+}
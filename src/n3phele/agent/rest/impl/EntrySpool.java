@@ -0,0 +1,144 @@
+/**
+ * @author Nigel Cook
+ *
+ * (C) Copyright 2010-2012. Nigel Cook. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * Licensed under the terms described in LICENSE file that accompanied this code, (the "License"); you may not use this file
+ * except in compliance with the License.
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ *  an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ */
+package n3phele.agent.rest.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.logging.Logger;
+
+import n3phele.agent.repohandlers.BufferPool;
+import n3phele.service.core.Resource;
+
+/** Holds content written once and read back later, such as an inflated zip entry waiting to be uploaded.
+ * Content up to a memory limit is held in BufferPool buffers, and larger content is written to a temporary
+ * file in the agent workDir.
+ */
+public class EntrySpool extends OutputStream {
+	private static Logger log = Logger.getLogger(EntrySpool.class.getName());
+	private static final File workDir = new File(Resource.get("workDir",
+			System.getProperty("java.io.tmpdir")+File.separator+"n3phele"));
+
+	private final String name;
+	private final int memoryLimit;
+	private byte[] memory = null;
+	private long count = 0;
+	private File file = null;
+	private OutputStream out = null;
+
+	/**
+	 * @param name prefix used to name the spool file
+	 * @param memoryLimit maximum bytes held on the heap
+	 */
+	public EntrySpool(String name, int memoryLimit) {
+		this.name = name;
+		this.memoryLimit = memoryLimit;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if(out == null && count + len <= memoryLimit) {
+			if(memory == null || count + len > memory.length) {
+				byte[] grown = BufferPool.acquire((int) Math.min(memoryLimit, Math.max(count + len, memory == null? 0 : 2L*memory.length)));
+				if(memory != null)
+					System.arraycopy(memory, 0, grown, 0, (int) count);
+				BufferPool.release(memory);
+				memory = grown;
+			}
+			System.arraycopy(b, off, memory, (int) count, len);
+		} else {
+			if(out == null) {
+				if(!workDir.exists())
+					workDir.mkdirs();
+				file = File.createTempFile(name+"-", ".spool", workDir);
+				out = new BufferedOutputStream(new FileOutputStream(file), 64*1024);
+				if(memory != null)
+					out.write(memory, 0, (int) count);
+				BufferPool.release(memory);
+				memory = null;
+			}
+			out.write(b, off, len);
+		}
+		count += len;
+	}
+
+	/** Completes writing of the content
+	 * @see java.io.OutputStream#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		if(out != null) {
+			out.close();
+		}
+	}
+
+	/** Copies a stream into the spool and closes the spool
+	 * @param input
+	 * @param buffer copy buffer
+	 * @throws IOException
+	 */
+	public void fill(InputStream input, byte[] buffer) throws IOException {
+		int n;
+		while((n = input.read(buffer)) != -1) {
+			write(buffer, 0, n);
+		}
+		close();
+	}
+
+	/**
+	 * @return the number of bytes written
+	 */
+	public long getLength() {
+		return count;
+	}
+
+	/**
+	 * @return the content
+	 * @throws IOException
+	 */
+	public InputStream getInputStream() throws IOException {
+		if(file != null)
+			return new FileInputStream(file);
+		if(memory == null)
+			return new ByteArrayInputStream(new byte[0]);
+		return new ByteArrayInputStream(memory, 0, (int) count);
+	}
+
+	/**
+	 * Discards the content
+	 */
+	public void release() {
+		BufferPool.release(memory);
+		memory = null;
+		try {
+			close();
+		} catch (IOException e) {
+		}
+		if(file != null) {
+			if(!file.delete())
+				log.warning("Unable to delete "+file);
+			file = null;
+		}
+	}
+}
@@ -0,0 +1,163 @@
+/**
+ * @author Nigel Cook
+ *
+ * (C) Copyright 2010-2012. Nigel Cook. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * Licensed under the terms described in LICENSE file that accompanied this code, (the "License"); you may not use this file
+ * except in compliance with the License.
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ *  an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ */
+package n3phele.agent.rest.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import n3phele.agent.model.OutputBuffer;
+import n3phele.service.core.Resource;
+
+/** Logs the lines passing through a process input or output stream according to the processIoLog policy:
+ * <li> off - nothing is logged
+ * <li> sampled - one line in every processIoLogSample lines is logged
+ * <li> rate - lines are logged while the stream stays below processIoLogRate bytes per second
+ * <li> full - every line is logged
+ * <p>
+ * Lines that are not logged are counted, and the count is logged when the stream closes.
+ */
+public class ProcessIoLog {
+	private static Logger log = Logger.getLogger(ProcessIoLog.class.getName());
+	public enum Policy { OFF, SAMPLED, RATE, FULL };
+
+	private static final Policy policy = policy(Resource.get("processIoLog", "sampled"));
+	private static final int sample = Math.max(1, Resource.get("processIoLogSample", 100));
+	private static final long rate = Math.max(1, Resource.get("processIoLogRate", 4096L));
+	private static final AtomicLong totalLogged = new AtomicLong(0);
+	private static final AtomicLong totalSuppressed = new AtomicLong(0);
+
+	private final String label;
+	private long lines = 0;
+	private long suppressed = 0;
+	private boolean lineStart = true;
+	private boolean logging = false;
+	private long allowance = rate;
+	private long lastRefill = System.currentTimeMillis();
+
+	/**
+	 * @param label prefix for logged lines
+	 */
+	public ProcessIoLog(String label) {
+		this.label = label;
+	}
+
+	/** Logs the lines of a chunk of stream bytes. A line may span chunks.
+	 * @param b
+	 * @param off
+	 * @param len
+	 */
+	public void log(byte[] b, int off, int len) {
+		int end = off + len;
+		int start = off;
+		for(int i = off; i < end; i++) {
+			if(b[i] == '\n') {
+				line(b, start, i - start, true);
+				start = i + 1;
+			}
+		}
+		if(start < end)
+			line(b, start, end - start, false);
+	}
+
+	/** Logs the lines of a string
+	 * @param s
+	 */
+	public void log(String s) {
+		byte[] b = s.getBytes(OutputBuffer.UTF8);
+		log(b, 0, b.length);
+	}
+
+	/**
+	 * Logs the number of suppressed lines, if any
+	 */
+	public void close() {
+		if(!lineStart) {
+			if(logging) {
+				totalLogged.incrementAndGet();
+			} else {
+				suppressed++;
+				totalSuppressed.incrementAndGet();
+			}
+			lineStart = true;
+		}
+		if(suppressed > 0)
+			log.info(label+": "+suppressed+" of "+lines+" lines not logged");
+	}
+
+	/**
+	 * @return the number of lines not logged by the policy
+	 */
+	public long getSuppressed() {
+		return suppressed;
+	}
+
+	/**
+	 * @return the number of lines logged across all process streams
+	 */
+	public static long getTotalLogged() {
+		return totalLogged.get();
+	}
+
+	/**
+	 * @return the number of lines not logged across all process streams
+	 */
+	public static long getTotalSuppressed() {
+		return totalSuppressed.get();
+	}
+
+	private void line(byte[] b, int off, int len, boolean complete) {
+		if(lineStart) {
+			lines++;
+			logging = select(len);
+		}
+		if(logging) {
+			log.warning(label+": "+new String(b, off, len, OutputBuffer.UTF8));
+			if(complete)
+				totalLogged.incrementAndGet();
+		} else if(complete) {
+			suppressed++;
+			totalSuppressed.incrementAndGet();
+		}
+		lineStart = complete;
+	}
+
+	private boolean select(int len) {
+		switch(policy) {
+		case FULL:
+			return true;
+		case SAMPLED:
+			return (lines - 1) % sample == 0;
+		case RATE:
+			long now = System.currentTimeMillis();
+			allowance = Math.min(rate, allowance + (now - lastRefill) * rate / 1000);
+			lastRefill = now;
+			if(allowance >= len) {
+				allowance -= len;
+				return true;
+			}
+			return false;
+		default:
+			return false;
+		}
+	}
+
+	private static Policy policy(String name) {
+		try {
+			return Policy.valueOf(name.trim().toUpperCase());
+		} catch (Exception e) {
+			log.warning("Unknown processIoLog policy "+name+", using sampled");
+			return Policy.SAMPLED;
+		}
+	}
+}
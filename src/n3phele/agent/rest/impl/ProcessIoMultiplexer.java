@@ -0,0 +1,146 @@
+/**
+ * @author Nigel Cook
+ *
+ * (C) Copyright 2010-2012. Nigel Cook. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * Licensed under the terms described in LICENSE file that accompanied this code, (the "License"); you may not use this file
+ * except in compliance with the License.
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ *  an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ */
+package n3phele.agent.rest.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** Drains the output streams of many processes from a small fixed set of threads.
+ * <p>
+ * Process streams cannot be registered with a selector, so each thread repeatedly polls the streams
+ * assigned to it, reading only what is available without blocking, and backs off when all of its streams
+ * are idle. Once a process has exited and its stream has nothing more available, the remainder of the
+ * stream is read to end of stream by a final blocking read on the completion executor, so that a stream held
+ * open by a background child cannot stall the other streams.
+ */
+public class ProcessIoMultiplexer {
+	private static Logger log = Logger.getLogger(ProcessIoMultiplexer.class.getName());
+	private final static long MIN_IDLE = 1;
+	private final static long MAX_IDLE = 50;
+
+	private final Worker[] workers;
+	private final Executor completion;
+	private final AtomicInteger next = new AtomicInteger(0);
+
+	/**
+	 * @param threads number of polling threads
+	 * @param completion executor used to read streams of exited processes to end of stream
+	 */
+	public ProcessIoMultiplexer(int threads, Executor completion) {
+		this.completion = completion;
+		this.workers = new Worker[Math.max(1, threads)];
+		for(int i=0; i < workers.length; i++) {
+			workers[i] = new Worker();
+			Thread t = new Thread(workers[i], "ProcessIo-"+(i+1));
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/** Adds a process output stream to be drained
+	 * @param gobbler the stream and the buffer it is drained into
+	 * @param process the process writing the stream
+	 * @return a future that completes when the stream reaches end of stream
+	 */
+	public Future<?> register(StreamGobbler gobbler, Process process) {
+		Entry entry = new Entry(gobbler, process);
+		workers[(next.getAndIncrement() & Integer.MAX_VALUE) % workers.length].incoming.add(entry);
+		return entry.done;
+	}
+
+	/**
+	 * @return the number of streams being drained
+	 */
+	public int getActive() {
+		int result = 0;
+		for(Worker w : workers)
+			result += w.active.size() + w.incoming.size();
+		return result;
+	}
+
+	private static class Entry {
+		final StreamGobbler gobbler;
+		final Process process;
+		final FutureTask<Object> done;
+
+		Entry(StreamGobbler gobbler, Process process) {
+			this.gobbler = gobbler;
+			this.process = process;
+			this.done = new FutureTask<Object>(gobbler, null);
+		}
+	}
+
+	private class Worker implements Runnable {
+		final LinkedBlockingQueue<Entry> incoming = new LinkedBlockingQueue<Entry>();
+		final List<Entry> active = new ArrayList<Entry>();
+		final byte[] buffer = new byte[8*1024];
+
+		@Override
+		public void run() {
+			long idle = MIN_IDLE;
+			while(true) {
+				try {
+					if(active.isEmpty())
+						active.add(incoming.take());
+					incoming.drainTo(active);
+					boolean progress = false;
+					for(Iterator<Entry> i = active.iterator(); i.hasNext(); ) {
+						Entry e = i.next();
+						int n;
+						try {
+							n = e.gobbler.poll(buffer);
+						} catch (IOException ex) {
+							n = -1; // reported by the final read
+						}
+						if(n > 0) {
+							progress = true;
+						} else if(n < 0 || exited(e.process)) {
+							i.remove();
+							completion.execute(e.done);
+						}
+					}
+					if(progress) {
+						idle = MIN_IDLE;
+					} else {
+						Thread.sleep(idle);
+						idle = Math.min(MAX_IDLE, 2*idle);
+					}
+				} catch (InterruptedException e) {
+					log.warning("Process stream polling interrupted");
+					return;
+				} catch (Exception e) {
+					log.log(Level.SEVERE, "Process stream polling failed", e);
+				}
+			}
+		}
+	}
+
+	private static boolean exited(Process process) {
+		try {
+			process.exitValue();
+			return true;
+		} catch (IllegalThreadStateException e) {
+			return false;
+		}
+	}
+}
@@ -15,6 +15,7 @@ package n3phele.agent.rest.impl;
 
 import java.io.IOException; 
 import java.io.InputStream; 
+import java.util.concurrent.atomic.AtomicLong;
 
 import n3phele.agent.model.Task;
  
@@ -23,24 +24,32 @@ public class ProgressInputStream extends InputStream {
     private final InputStream inputStream; 
     private long progress;
     private final long length;
+    private final AtomicLong shared;
  
     public ProgressInputStream(InputStream inputStream, Task t, long length) { 
+        this(inputStream, t, length, null);
+    }  
+    
+    /**
+     * @param inputStream
+     * @param t task whose progress is reported
+     * @param length total bytes of all streams sharing the progress count
+     * @param shared count of bytes read by all streams contributing to the task progress, or null
+     */
+    public ProgressInputStream(InputStream inputStream, Task t, long length, AtomicLong shared) { 
         this.inputStream = inputStream;
         this.length = length;
         this.task = t;
         this.progress = 0;
+        this.shared = shared;
     }  
      
  
     @Override 
     public int read() throws IOException { 
         int count = inputStream.read(); 
-        if (count > 0) {
-            progress += count;
-            if(progress > length)
-            	progress = length+1;
-            if(task != null)
-            	task.setProgress((int)(progress*1000/length));
+        if (count != -1) {
+            progress(1);
         }
         return count; 
     } 
@@ -48,14 +57,31 @@ public class ProgressInputStream extends InputStream {
     public int read(byte[] b, int off, int len) throws IOException { 
         int count = inputStream.read(b, off, len); 
         if (count > 0) {
-            progress += count; 
-            if(progress > length)
-            	progress = length+1;
-            if(task != null)
-            	task.setProgress((int)(progress*1000/length));
+            progress(count);
         }
         return count; 
     }
+
+    /** Skips by skipping the underlying stream, counting the bytes skipped as progress
+     * @see java.io.InputStream#skip(long)
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        long count = inputStream.skip(n);
+        if (count > 0) {
+            progress(count);
+        }
+        return count;
+    }
+    
+    private void progress(long count) {
+        progress += count; 
+        long done = (shared == null)? progress : shared.addAndGet(count);
+        if(done > length)
+        	done = length+1;
+        if(task != null && length > 0)
+        	task.setProgress((int)(done*1000/length));
+    }
     
     @Override
     public void close() throws IOException {
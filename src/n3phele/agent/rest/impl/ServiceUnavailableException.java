@@ -0,0 +1,41 @@
+/**
+ * @author Nigel Cook
+ *
+ * (C) Copyright 2010-2012. Nigel Cook. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * 
+ * Licensed under the terms described in LICENSE file that accompanied this code, (the "License"); you may not use this file
+ * except in compliance with the License. 
+ * 
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on 
+ *  an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the 
+ *  specific language governing permissions and limitations under the License.
+ */
+package n3phele.agent.rest.impl;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+public class ServiceUnavailableException extends WebApplicationException {
+	private static final long serialVersionUID = 1L;
+
+	/**
+     * Create a HTTP 503 (Service Unavailable) exception.
+     * @param retryAfter seconds the client should wait before retrying the request
+     */
+    public ServiceUnavailableException(int retryAfter) {
+        super(Response.status(Status.SERVICE_UNAVAILABLE).header("Retry-After", retryAfter).build());
+    }
+
+    /**
+     * Create a HTTP 503 (Service Unavailable) exception.
+     * @param message the String that is the entity of the 503 response.
+     * @param retryAfter seconds the client should wait before retrying the request
+     */
+    public ServiceUnavailableException(String message, int retryAfter) {
+        super(Response.status(Status.SERVICE_UNAVAILABLE).header("Retry-After", retryAfter).
+                entity(message).type("text/plain").build());
+    }
+
+}
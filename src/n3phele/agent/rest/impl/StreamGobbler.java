@@ -13,36 +13,70 @@
  */
 package n3phele.agent.rest.impl;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-public class StreamGobbler extends Thread
+import n3phele.agent.model.OutputBuffer;
+
+/** Copies the raw bytes of a process output stream into an output buffer.
+ * Output is not decoded as it is captured, so binary output and a final line without
+ * a line terminator are kept exactly. Lines are logged according to the {@link ProcessIoLog} policy.
+ */
+public class StreamGobbler implements Runnable
 {
 	private static Logger log = Logger.getLogger(StreamGobbler.class.getName());
     InputStream is;
-    StringBuilder result;
+    OutputBuffer result;
+    ProcessIoLog ioLog;
+    
+    public StreamGobbler(InputStream is, OutputBuffer result) {
+        this(is, result, "Gobble");
+    }
     
-    public StreamGobbler(InputStream is, StringBuilder result) {
+    public StreamGobbler(InputStream is, OutputBuffer result, String label) {
         this.is = is;
         this.result = result;
+        this.ioLog = new ProcessIoLog(label);
+    }
+    
+    /** Reads whatever output is available without blocking
+     * @param buffer
+     * @return the number of bytes read, 0 if none are available, -1 at end of stream
+     * @throws IOException
+     */
+    public int poll(byte[] buffer) throws IOException {
+        int available = is.available();
+        if(available <= 0)
+            return 0;
+        int len = is.read(buffer, 0, Math.min(available, buffer.length));
+        if(len > 0) {
+            result.append(buffer, 0, len);
+            ioLog.log(buffer, 0, len);
+        }
+        return len;
     }
     
+    /* 
+     * Reads the stream to end of stream
+     */
     public void run() {
         try {
-            InputStreamReader isr = new InputStreamReader(is);
-            BufferedReader br = new BufferedReader(isr);
-            String line=null;
- 
-            while ( (line = br.readLine()) != null) {
-                log.warning("Gobble: "+line);
-                result.append(line+"\n");
+            byte[] buffer = new byte[8*1024];
+            int len;
+            while ((len = is.read(buffer)) != -1) {
+                result.append(buffer, 0, len);
+                ioLog.log(buffer, 0, len);
             }
         } catch (IOException ioe) {
         	log.log(Level.SEVERE, "Exception ", ioe);
+        } finally {
+        	ioLog.close();
+        	try {
+        		is.close();
+        	} catch (IOException e) {
+        	}
         }
     }
 
@@ -20,15 +20,21 @@ import java.io.OutputStreamWriter;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-public class StreamPump extends Thread
+public class StreamPump implements Runnable
 {
 	private static Logger log = Logger.getLogger(StreamPump.class.getName());
     OutputStream os;
     String source;
+    ProcessIoLog ioLog;
     
     StreamPump(OutputStream os, String source) {
+        this(os, source, "Pump");
+    }
+    
+    StreamPump(OutputStream os, String source, String label) {
         this.os = os;
         this.source = source;
+        this.ioLog = new ProcessIoLog(label);
     }
     
     public void run() {
@@ -36,7 +42,8 @@ public class StreamPump extends Thread
             OutputStreamWriter osr = new OutputStreamWriter(os);
             BufferedWriter bw = new BufferedWriter(osr);
             bw.write(source);
-            log.warning("Pump: "+source);
+            ioLog.log(source);
+            ioLog.close();
             bw.close();
         } catch (IOException ioe) {
         	log.log(Level.SEVERE, "Pump exception", ioe);
@@ -16,13 +16,16 @@ package n3phele.agent.rest.impl;
 import java.util.Calendar;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import n3phele.agent.model.Task;
 
-public class TaskExecuter extends Thread {
+public class TaskExecuter implements Runnable {
 	private static Logger log = Logger.getLogger(TaskExecuter.class.getName());
 
 	String[] cmd;
@@ -48,6 +51,7 @@ public class TaskExecuter extends Thread {
 	}
 	
 	public void run() {
+		String threadName = Thread.currentThread().getName();
 		try {            
 			String concat = "TaskExecution: ";
 			for(String s : cmd) {
@@ -64,32 +68,56 @@ public class TaskExecuter extends Thread {
 			
 			
 			me.setProcess(proc);
-			this.setName("Process"+getId());
+			Thread.currentThread().setName("Process"+me.getId());
 			
-			StreamPump inputPump = new
-			StreamPump(proc.getOutputStream(), me.getStdin());
 			// any error message?
 			StreamGobbler errorGobbler = new 
-			StreamGobbler(proc.getErrorStream(), me.getStderrStringBuilder());            
+			StreamGobbler(proc.getErrorStream(), me.getStderrBuffer(), "Task"+me.getId()+" stderr");            
 
 			// any output?
 			StreamGobbler outputGobbler = new 
-			StreamGobbler(proc.getInputStream(), me.getStdoutStringBuilder());
+			StreamGobbler(proc.getInputStream(), me.getStdoutBuffer(), "Task"+me.getId()+" stdout");
 
 			// kick them off
-			inputPump.start();
-			errorGobbler.start();
-			outputGobbler.start();
+			if(me.isStreamStdin()) {
+				// stdin is written by the client through the task stdin resource
+			} else if(me.getStdin() == null || me.getStdin().length() == 0) {
+				proc.getOutputStream().close();
+			} else {
+				TaskScheduler.io().submit(new StreamPump(proc.getOutputStream(), me.getStdin(), "Task"+me.getId()+" stdin"));
+			}
+			Future<?> error = TaskScheduler.submitOutput(errorGobbler, proc);
+			Future<?> output = TaskScheduler.submitOutput(outputGobbler, proc);
 
 			// any error???
-			me.setExitcode(proc.waitFor());
+			int exitcode = proc.waitFor();
+			// collect the remaining output before reporting completion
+			drain(error);
+			drain(output);
+			me.setExitcode(exitcode);
         
 		} catch (Throwable t) {
-			me.getStderrStringBuilder().append("Exception: "+t.toString()+"\n");
+			me.getStderrBuffer().append("Exception: "+t.toString()+"\n");
 			log.log(Level.WARNING, "Task exception "+this.cmd[0], t);
 		} finally {
-			me.setFinished(Calendar.getInstance().getTime());
-			SendNotification.sendCompletionNotification(me);
+			try {
+				me.setFinished(Calendar.getInstance().getTime());
+				SendNotification.sendCompletionNotification(me);
+			} finally {
+				Thread.currentThread().setName(threadName); // the worker is pooled
+			}
+		}
+	}
+	
+	/*
+	 * Waits for a stream gobbler to reach end of stream. Background processes started by the command
+	 * can hold the stream open, so the wait is bounded.
+	 */
+	private void drain(Future<?> gobbler) throws Exception {
+		try {
+			gobbler.get(5, TimeUnit.SECONDS);
+		} catch (TimeoutException e) {
+			log.info("Task "+me.getId()+" output still open after exit");
 		}
 	}
 	
@@ -0,0 +1,159 @@
+/**
+ * @author Nigel Cook
+ *
+ * (C) Copyright 2010-2012. Nigel Cook. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * Licensed under the terms described in LICENSE file that accompanied this code, (the "License"); you may not use this file
+ * except in compliance with the License.
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ *  an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ */
+package n3phele.agent.rest.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Logger;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+import n3phele.agent.model.OutputBuffer;
+import n3phele.agent.model.Task;
+import n3phele.service.core.Resource;
+
+/** Streams task output to a client as Server-Sent Events.
+ * <p>
+ * Output is sent as <i>stdout</i> and <i>stderr</i> events as it is captured, followed by an <i>exit</i>
+ * event carrying the exit code once the task has finished and its output has been sent. Each output
+ * event has an id of the form <i>stdoutOffset</i>,<i>stderrOffset</i> which a reconnecting client can
+ * return as Last-Event-ID to resume the stream. A comment is sent when the stream is idle so that
+ * disconnected clients are detected.
+ * <p>
+ * Each stream occupies an HTTP worker thread for its duration, so the number of concurrent streams is
+ * limited to maxOutputStreams. A stream holds its place from the start to the end of write, so requests
+ * whose entity is never written, such as HEAD requests, hold none.
+ */
+public class TaskOutputStreamer implements StreamingOutput {
+	private static Logger log = Logger.getLogger(TaskOutputStreamer.class.getName());
+	private final static Semaphore streams = new Semaphore(Resource.get("maxOutputStreams", 16));
+	private final static long POLL = 250;
+	private final static long KEEPALIVE = 15000;
+	private final static int CHUNK = 16*1024;
+
+	private final Task task;
+	private long stdoutOffset;
+	private long stderrOffset;
+
+	private TaskOutputStreamer(Task task, long stdoutOffset, long stderrOffset) {
+		this.task = task;
+		this.stdoutOffset = stdoutOffset;
+		this.stderrOffset = stderrOffset;
+	}
+
+	/** Creates a streamer for a task
+	 * @param task
+	 * @param lastEventId id of the last event received by a reconnecting client, or null
+	 * @return the streamer, or null if the maximum number of streams are active
+	 */
+	public static TaskOutputStreamer create(Task task, String lastEventId) {
+		long out = 0;
+		long err = 0;
+		if(lastEventId != null) {
+			try {
+				String[] offsets = lastEventId.split(",");
+				out = Long.parseLong(offsets[0].trim());
+				err = Long.parseLong(offsets[1].trim());
+			} catch (Exception e) {
+				throw new IllegalArgumentException("Invalid Last-Event-ID "+lastEventId);
+			}
+		}
+		if(streams.availablePermits() == 0)
+			return null;
+		return new TaskOutputStreamer(task, out, err);
+	}
+
+	/*
+	 * @see javax.ws.rs.core.StreamingOutput#write(java.io.OutputStream)
+	 */
+	@Override
+	public void write(OutputStream os) throws IOException, WebApplicationException {
+		// checked again here, as other streams may have started since create
+		if(!streams.tryAcquire())
+			throw new ServiceUnavailableException("Too many output streams", TaskScheduler.getRetryAfter());
+		try {
+			OutputBuffer stdout = task.getStdoutBuffer();
+			OutputBuffer stderr = task.getStderrBuffer();
+			byte[] buffer = new byte[CHUNK];
+			long idle = System.currentTimeMillis();
+			long outSeen;
+			long errSeen;
+			while(true) {
+				boolean finished = task.getFinished() != null;
+				boolean sent = false;
+				int n;
+				outSeen = stdoutOffset;
+				while((n = stdout.read(stdoutOffset, buffer, 0, buffer.length)) > 0) {
+					int complete = OutputBuffer.completeUTF8(buffer, 0, n);
+					if(complete == 0 && !finished) {
+						outSeen = stdoutOffset + n;
+						break; // wait for the rest of the character
+					}
+					if(complete > 0)
+						n = complete;
+					stdoutOffset += n;
+					outSeen = stdoutOffset;
+					send(os, "stdout", new String(buffer, 0, n, OutputBuffer.UTF8));
+					sent = true;
+				}
+				errSeen = stderrOffset;
+				while((n = stderr.read(stderrOffset, buffer, 0, buffer.length)) > 0) {
+					int complete = OutputBuffer.completeUTF8(buffer, 0, n);
+					if(complete == 0 && !finished) {
+						errSeen = stderrOffset + n;
+						break; // wait for the rest of the character
+					}
+					if(complete > 0)
+						n = complete;
+					stderrOffset += n;
+					errSeen = stderrOffset;
+					send(os, "stderr", new String(buffer, 0, n, OutputBuffer.UTF8));
+					sent = true;
+				}
+				if(finished && stdoutOffset >= stdout.length() && stderrOffset >= stderr.length()) {
+					os.write(("event: exit\ndata: "+task.getExitcode()+"\n\n").getBytes(OutputBuffer.UTF8));
+					os.flush();
+					break;
+				}
+				long now = System.currentTimeMillis();
+				if(sent) {
+					os.flush();
+					idle = now;
+				} else if(now - idle > KEEPALIVE) {
+					os.write(": keepalive\n\n".getBytes(OutputBuffer.UTF8));
+					os.flush();
+					idle = now;
+				}
+				if(!stdout.await(outSeen, POLL))
+					stderr.await(errSeen, 1);
+			}
+		} catch (InterruptedException e) {
+			log.info("Output stream of task "+task.getId()+" interrupted");
+		} finally {
+			streams.release();
+		}
+	}
+
+	private void send(OutputStream os, String event, String data) throws IOException {
+		StringBuilder message = new StringBuilder("event: ").append(event).append("\n");
+		message.append("id: ").append(stdoutOffset).append(",").append(stderrOffset).append("\n");
+		for(String line : data.split("\r\n|\r|\n", -1)) {
+			message.append("data: ").append(line).append("\n");
+		}
+		message.append("\n");
+		os.write(message.toString().getBytes(OutputBuffer.UTF8));
+	}
+}
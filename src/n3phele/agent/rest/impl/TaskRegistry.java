@@ -0,0 +1,106 @@
+/**
+ * @author Nigel Cook
+ *
+ * (C) Copyright 2010-2012. Nigel Cook. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * Licensed under the terms described in LICENSE file that accompanied this code, (the "License"); you may not use this file
+ * except in compliance with the License.
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ *  an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ */
+package n3phele.agent.rest.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import n3phele.agent.model.Task;
+
+/** Registry of the tasks known to the agent.
+ * <p>
+ * Tasks are indexed by id for constant time lookup, and ordered by their numeric id for listing.
+ * Task ids are allocated from a monotonic sequence, so id order is also submission order. Listing
+ * iterates over a weakly consistent view and never blocks concurrent submissions.
+ */
+public class TaskRegistry {
+	public static final String RUNNING = "RUNNING";
+	public static final String COMPLETE = "COMPLETE";
+	public static final String FAILED = "FAILED";
+
+	private final ConcurrentMap<String, Task> byId = new ConcurrentHashMap<String, Task>();
+	private final ConcurrentNavigableMap<Long, Task> ordered = new ConcurrentSkipListMap<Long, Task>();
+
+	public void add(Task t) {
+		byId.put(t.getId(), t);
+		ordered.put(Long.valueOf(t.getId()), t);
+	}
+
+	/**
+	 * @param id
+	 * @return the task with the given id, or null if not known
+	 */
+	public Task get(String id) {
+		if(id == null)
+			return null;
+		return byId.get(id);
+	}
+
+	/** Removes a task, releasing the files holding its older output
+	 * @param t task to remove
+	 * @return true if the task was registered
+	 */
+	public boolean remove(Task t) {
+		if(byId.remove(t.getId(), t)) {
+			ordered.remove(Long.valueOf(t.getId()));
+			t.release();
+			return true;
+		}
+		return false;
+	}
+
+	public int size() {
+		return byId.size();
+	}
+
+	/**
+	 * @return all tasks in id order
+	 */
+	public Collection<Task> values() {
+		return ordered.values();
+	}
+
+	/** Lists tasks in id order
+	 * @param state only include tasks in this state (RUNNING, COMPLETE or FAILED), null for all
+	 * @param since only include tasks with an id greater than this id
+	 * @param limit maximum number of tasks returned, 0 or less for no limit
+	 * @return list of matching tasks
+	 */
+	public List<Task> list(String state, long since, int limit) {
+		List<Task> result = new ArrayList<Task>();
+		for(Task t : ordered.tailMap(since, false).values()) {
+			if(state != null && !state.equalsIgnoreCase(stateOf(t)))
+				continue;
+			result.add(t);
+			if(limit > 0 && result.size() >= limit)
+				break;
+		}
+		return result;
+	}
+
+	/**
+	 * @param t
+	 * @return the state of the task, reported using the same names as completion notifications
+	 */
+	public static String stateOf(Task t) {
+		if(t.getFinished() == null)
+			return RUNNING;
+		return t.getExitcode()==0?COMPLETE:FAILED;
+	}
+}
@@ -13,15 +13,18 @@
  */
 package n3phele.agent.rest.impl;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Logger;
 
 import javax.annotation.security.RolesAllowed;
@@ -35,38 +38,55 @@ import javax.ws.rs.DELETE;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.FormParam;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.UriInfo;
 
 import n3phele.agent.Service;
 import n3phele.agent.model.CommandRequest;
+import n3phele.agent.model.OutputBuffer;
 import n3phele.agent.model.Task;
+import n3phele.agent.model.TaskOutput;
+import n3phele.agent.model.TaskStatistics;
+import n3phele.agent.repohandlers.S3ClientCache;
 import n3phele.service.core.Resource;
 
 import com.sun.jersey.core.util.Base64;
 
 @Path("task")
 public class TaskResource {
-	@SuppressWarnings("unused")
 	private static Logger log = Logger.getLogger(TaskResource.class.getName()); 
 	
 
 	@Context UriInfo uriInfo;
-	static List<Task> tasks = new ArrayList<Task>();
+	private final static int MAX_OUTPUT = 1024*1024;
+	private final static long stdinStartWait = Resource.get("stdinStartWait", 30)*1000L;
+	static TaskRegistry tasks = new TaskRegistry();
+	static TaskRetention retention = new TaskRetention(tasks);
+	static {
+		TaskScheduler.schedule(retention, Resource.get("taskRetentionSweep", 60));
+		TaskScheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				S3ClientCache.sweep();
+			}}, Resource.get("s3ClientSweep", 60));
+	}
 	@GET
 	@Produces("application/json")
 	@RolesAllowed("authenticated")
-	public List<Task> list() {
-		List<Task> result;
-		synchronized(tasks) {
-			result = new ArrayList<Task>(tasks);
-		}
-		return result;
+	public List<Task> list(@QueryParam("state") String state,
+						   @DefaultValue("0") @QueryParam("since") long since,
+						   @DefaultValue("0") @QueryParam("limit") int limit) {
+		return tasks.list(state, since, limit);
 	}
 	
 	@GET
@@ -77,6 +97,34 @@ public class TaskResource {
 		return Calendar.getInstance().getTime().toString();
 	}
 	
+	@GET
+	@Path("statistics")
+	@Produces("application/json")
+	@RolesAllowed("authenticated")
+	public TaskStatistics statistics() {
+		TaskStatistics result = new TaskStatistics();
+		int running = 0;
+		for(Task t : tasks.values()) {
+			if(t.getFinished() == null)
+				running++;
+		}
+		result.setTasks(tasks.size());
+		result.setRunning(running);
+		result.setRetainedBytes(retention.getRetainedBytes());
+		result.setEvictedByCount(retention.getEvictedByCount());
+		result.setEvictedByAge(retention.getEvictedByAge());
+		result.setEvictedByBytes(retention.getEvictedByBytes());
+		result.setShellActive(TaskScheduler.getShellPool().getActiveCount());
+		result.setShellQueued(TaskScheduler.getShellPool().getQueue().size());
+		result.setShellRejected(TaskScheduler.getShellRejected());
+		result.setXferActive(TaskScheduler.getXferPool().getActiveCount());
+		result.setXferQueued(TaskScheduler.getXferPool().getQueue().size());
+		result.setXferRejected(TaskScheduler.getXferRejected());
+		result.setIoLinesLogged(ProcessIoLog.getTotalLogged());
+		result.setIoLinesSuppressed(ProcessIoLog.getTotalSuppressed());
+		return result;
+	}
+	
 	@GET
 	@Path("terminate")
 	@RolesAllowed("authenticated")
@@ -102,17 +150,117 @@ public class TaskResource {
 	@Produces("application/json")
 	@RolesAllowed("authenticated")
 	public Task get(@PathParam("id") String id) {
-		List<Task> copy;
-		synchronized(tasks) {
-			copy = new ArrayList<Task>(tasks);
-		}
-		for(Task t : copy) {
-			if(t.getId().equals(id))
-				return t;
+		Task t = tasks.get(id);
+		if(t == null)
+			throw new NotFoundException("Task id "+id+" not found");
+		return t;
+	}
+	
+	
+	@GET
+	@Path("{id}/stdout")
+	@Produces("application/json")
+	@RolesAllowed("authenticated")
+	public TaskOutput stdout(@PathParam("id") String id,
+							 @DefaultValue("0") @QueryParam("offset") long offset,
+							 @DefaultValue("65536") @QueryParam("limit") int limit) {
+		Task t = get(id);
+		return output(t, t.getStdoutBuffer(), offset, limit);
+	}
+	
+	@GET
+	@Path("{id}/stderr")
+	@Produces("application/json")
+	@RolesAllowed("authenticated")
+	public TaskOutput stderr(@PathParam("id") String id,
+							 @DefaultValue("0") @QueryParam("offset") long offset,
+							 @DefaultValue("65536") @QueryParam("limit") int limit) {
+		Task t = get(id);
+		return output(t, t.getStderrBuffer(), offset, limit);
+	}
+	
+	@GET
+	@Path("{id}/stream")
+	@Produces("text/event-stream")
+	@RolesAllowed("authenticated")
+	public Response stream(@PathParam("id") String id,
+						   @HeaderParam("Last-Event-ID") String lastEventId) {
+		Task t = get(id);
+		TaskOutputStreamer streamer;
+		try {
+			streamer = TaskOutputStreamer.create(t, lastEventId);
+		} catch (IllegalArgumentException e) {
+			throw new WebApplicationException(Response.status(Status.BAD_REQUEST).
+					entity(e.getMessage()).type("text/plain").build());
 		}
-		throw new NotFoundException("Task id "+id+" not found");
+		if(streamer == null)
+			throw new ServiceUnavailableException("Too many output streams", TaskScheduler.getRetryAfter());
+		return Response.ok(streamer).header("Cache-Control", "no-cache").build();
 	}
 	
+	/** Copies the request body to the stdin of a task created with streamStdin. The copy proceeds
+	 * at the rate the process consumes its input.
+	 * @param id
+	 * @param close close the process stdin once the body is written, otherwise further PUTs append to stdin
+	 * @param body
+	 * @return 204 once the body has been written to the process
+	 */
+	@PUT
+	@Path("{id}/stdin")
+	@Consumes("application/octet-stream")
+	@RolesAllowed("authenticated")
+	public Response stdin(@PathParam("id") String id,
+						  @DefaultValue("true") @QueryParam("close") boolean close,
+						  InputStream body) {
+		Task t = get(id);
+		if(!t.isStreamStdin())
+			throw new ConflictException("Task "+id+" stdin is not streamed");
+		if(!t.claimStdin())
+			throw new ConflictException("Task "+id+" stdin is closed or in use");
+		boolean closed = false;
+		try {
+			Process p = t.awaitProcess(stdinStartWait);
+			if(p == null) {
+				if(t.getFinished() != null) {
+					closed = true;
+					throw new ConflictException("Task "+id+" has finished");
+				}
+				throw new ServiceUnavailableException("Task "+id+" not started", TaskScheduler.getRetryAfter());
+			}
+			OutputStream os = p.getOutputStream();
+			ProcessIoLog ioLog = new ProcessIoLog("Task"+id+" stdin");
+			byte[] buffer = new byte[32*1024];
+			long total = 0;
+			try {
+				int n;
+				while((n = body.read(buffer)) != -1) {
+					try {
+						os.write(buffer, 0, n);
+					} catch (IOException e) {
+						closed = true;
+						throw new ConflictException("Task "+id+" stdin closed by process after "+total+" bytes");
+					}
+					ioLog.log(buffer, 0, n);
+					total += n;
+				}
+				os.flush();
+				if(close) {
+					closed = true;
+					os.close();
+				}
+			} catch (IOException e) {
+				log.warning("Task "+id+" stdin failed after "+total+" bytes "+e.getMessage());
+				throw new WebApplicationException(e, Status.BAD_REQUEST);
+			} finally {
+				ioLog.close();
+			}
+			return Response.noContent().build();
+		} catch (InterruptedException e) {
+			throw new ServiceUnavailableException("Task "+id+" not started", TaskScheduler.getRetryAfter());
+		} finally {
+			t.releaseStdin(closed);
+		}
+	}
 	
 	@POST
 	@Consumes("application/json")
@@ -124,15 +272,22 @@ public class TaskResource {
 		//FileRef[] files = cr.getFiles();
 		if(stdin == null)
 			stdin = "";
+		if(cr.isStreamStdin() && stdin.length() != 0)
+			throw new WebApplicationException(Response.status(Status.BAD_REQUEST).
+					entity("stdin and streamStdin are exclusive").type("text/plain").build());
 
 		Task t = new Task(new String[] {"/bin/bash", "-e", "-c", cmd }, stdin, notificationURI);
+		t.setStreamStdin(cr.isStreamStdin());
 		TaskExecuter exe = new TaskExecuter(t.getCmd(), t.getStdin(), t);
 		if(Service.myURI== null) Service.myURI = uriInfo.getBaseUriBuilder().build();
 		t.setUri(uriInfo.getBaseUriBuilder().path(TaskResource.class).path(t.getId()).build());
-		synchronized (tasks) {
-			tasks.add(t);
+		tasks.add(t);
+		retention.check();
+		try {
+			TaskScheduler.submitShell(exe);
+		} catch (RejectedExecutionException e) {
+			reject(t);
 		}
-		exe.start();
 
 		return Response.created(t.getUri()).build();
 	}
@@ -170,10 +325,13 @@ public class TaskResource {
 											destination, destRoot, destKey, destAccount, destSecret, destKind);
 		if(Service.myURI== null) Service.myURI = uriInfo.getBaseUriBuilder().build();
 		t.setUri(uriInfo.getBaseUriBuilder().path(TaskResource.class).path(t.getId()).build());	
-		synchronized (tasks) {
-			tasks.add(t);
+		tasks.add(t);
+		retention.check();
+		try {
+			TaskScheduler.submitXfer(exe);
+		} catch (RejectedExecutionException e) {
+			reject(t);
 		}
-		exe.start();
 
 		return Response.created(t.getUri()).build();
 	}
@@ -186,9 +344,7 @@ public class TaskResource {
 		Task t = get(id);
 		if(t.getProcess() != null)
 			t.getProcess().destroy();
-		synchronized(tasks) {
-			tasks.remove(t);
-		}
+		tasks.remove(t);
 	}
 	
 	@GET
@@ -201,6 +357,39 @@ public class TaskResource {
 		return t;
 	}
 
+	/*
+	 * Reads up to limit bytes of task output starting at offset, ending on a character boundary
+	 */
+	private TaskOutput output(Task t, OutputBuffer buffer, long offset, int limit) {
+		if(offset < 0)
+			offset = 0;
+		if(limit <= 0 || limit > MAX_OUTPUT)
+			limit = MAX_OUTPUT;
+		boolean finished = t.getFinished() != null;
+		long length = buffer.length();
+		byte[] b = new byte[(int) Math.max(0, Math.min(limit, length - offset))];
+		int n;
+		try {
+			n = buffer.read(offset, b, 0, b.length);
+		} catch (IOException e) {
+			throw new WebApplicationException(Response.status(Status.GONE).
+					entity(e.getMessage()).type("text/plain").build());
+		}
+		int complete = OutputBuffer.completeUTF8(b, 0, n);
+		if(complete > 0 || !finished)
+			n = complete;
+		long next = offset + n;
+		return new TaskOutput(offset, next, length, finished && next >= length,
+				new String(b, 0, n, OutputBuffer.UTF8));
+	}
+	
+	/*
+	 * Withdraws a task that could not be admitted and reports the agent as busy
+	 */
+	private void reject(Task t) {
+		tasks.remove(t);
+		throw new ServiceUnavailableException("Agent busy, task "+t.getId()+" not accepted", TaskScheduler.getRetryAfter());
+	}
 	
 	private String decryptor(String encrypted, String passwd) {
 		if(encrypted == null || encrypted == "")
@@ -0,0 +1,170 @@
+/**
+ * @author Nigel Cook
+ *
+ * (C) Copyright 2010-2012. Nigel Cook. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * Licensed under the terms described in LICENSE file that accompanied this code, (the "License"); you may not use this file
+ * except in compliance with the License.
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ *  an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ */
+package n3phele.agent.rest.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import n3phele.agent.model.Task;
+import n3phele.service.core.Resource;
+
+/** Evicts finished tasks from the task registry.
+ * <p>
+ * Running tasks are never evicted. Finished tasks are evicted oldest finish time first when
+ * <li> more than taskRetentionCount tasks are held
+ * <li> the task finished more than taskRetentionAge seconds ago
+ * <li> the tasks held retain more than taskRetentionBytes of captured output
+ */
+public class TaskRetention implements Runnable {
+	private static Logger log = Logger.getLogger(TaskRetention.class.getName());
+
+	private final TaskRegistry tasks;
+	private final int maxCount;
+	private final long maxAge;
+	private final long maxBytes;
+	private final AtomicLong evictedByCount = new AtomicLong(0);
+	private final AtomicLong evictedByAge = new AtomicLong(0);
+	private final AtomicLong evictedByBytes = new AtomicLong(0);
+	private volatile long retainedBytes = 0;
+
+	public TaskRetention(TaskRegistry tasks) {
+		this(tasks, Resource.get("taskRetentionCount", 1000),
+				Resource.get("taskRetentionAge", 24*60*60L)*1000,
+				Resource.get("taskRetentionBytes", 256*1024*1024L));
+	}
+
+	/**
+	 * @param tasks the registry to manage
+	 * @param maxCount maximum number of tasks held, 0 or less for no limit
+	 * @param maxAge maximum milliseconds a finished task is held, 0 or less for no limit
+	 * @param maxBytes maximum bytes of task output held, 0 or less for no limit
+	 */
+	public TaskRetention(TaskRegistry tasks, int maxCount, long maxAge, long maxBytes) {
+		this.tasks = tasks;
+		this.maxCount = maxCount;
+		this.maxAge = maxAge;
+		this.maxBytes = maxBytes;
+	}
+
+	/*
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		try {
+			enforce();
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Retention sweep failed", e);
+		}
+	}
+
+	/**
+	 * Applies the retention limits once, evicting as many finished tasks as needed
+	 */
+	public synchronized void enforce() {
+		List<Task> finished = new ArrayList<Task>();
+		long bytes = 0;
+		for(Task t : tasks.values()) {
+			bytes += sizeOf(t);
+			if(t.getFinished() != null)
+				finished.add(t);
+		}
+		Collections.sort(finished, new Comparator<Task>() {
+			@Override
+			public int compare(Task a, Task b) {
+				return a.getFinished().compareTo(b.getFinished());
+			}});
+
+		long horizon = System.currentTimeMillis() - maxAge;
+		int count = tasks.size();
+		for(Task t : finished) {
+			AtomicLong reason;
+			if(maxAge > 0 && t.getFinished().getTime() < horizon) {
+				reason = evictedByAge;
+			} else if(maxCount > 0 && count > maxCount) {
+				reason = evictedByCount;
+			} else if(maxBytes > 0 && bytes > maxBytes) {
+				reason = evictedByBytes;
+			} else {
+				break;
+			}
+			long size = sizeOf(t);
+			if(tasks.remove(t)) {
+				reason.incrementAndGet();
+				count--;
+				bytes -= size;
+				log.info("Evicted task "+t.getId()+" finished "+t.getFinished());
+			}
+		}
+		this.retainedBytes = bytes;
+	}
+
+	/**
+	 * Applies the retention limits if the registry has grown past the count limit
+	 */
+	public void check() {
+		if(maxCount > 0 && tasks.size() > maxCount)
+			enforce();
+	}
+
+	/**
+	 * @param t
+	 * @return approximate heap bytes held by the task's captured input and output
+	 */
+	public static long sizeOf(Task t) {
+		long result = 0;
+		if(t.getStdin() != null)
+			result += 2L*t.getStdin().length();
+		if(t.getStdoutBuffer() != null)
+			result += t.getStdoutBuffer().getRetainedBytes();
+		if(t.getStderrBuffer() != null)
+			result += t.getStderrBuffer().getRetainedBytes();
+		if(t.getManifest() != null)
+			result += 512L*t.getManifest().length;
+		return result;
+	}
+
+	/**
+	 * @return the number of tasks evicted by the count limit
+	 */
+	public long getEvictedByCount() {
+		return evictedByCount.get();
+	}
+
+	/**
+	 * @return the number of tasks evicted by the age limit
+	 */
+	public long getEvictedByAge() {
+		return evictedByAge.get();
+	}
+
+	/**
+	 * @return the number of tasks evicted by the output bytes limit
+	 */
+	public long getEvictedByBytes() {
+		return evictedByBytes.get();
+	}
+
+	/**
+	 * @return the bytes of task output held as of the last sweep
+	 */
+	public long getRetainedBytes() {
+		return retainedBytes;
+	}
+}
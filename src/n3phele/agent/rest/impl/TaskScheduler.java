@@ -0,0 +1,220 @@
+/**
+ * @author Nigel Cook
+ *
+ * (C) Copyright 2010-2012. Nigel Cook. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * Licensed under the terms described in LICENSE file that accompanied this code, (the "License"); you may not use this file
+ * except in compliance with the License.
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ *  an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ */
+package n3phele.agent.rest.impl;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import n3phele.service.core.Resource;
+
+/** Bounded worker pools used to run shell tasks and transfers.
+ * <p>
+ * Shell tasks and transfers each have a fixed number of worker threads and a bounded admission queue.
+ * When both the workers and the queue of a pool are full the submission is rejected, and the caller
+ * is expected to report the agent as temporarily unavailable. Process stream pumps run on a separate
+ * pool that grows with demand, as a stream stays open for as long as the process, or any child that
+ * inherits it, keeps it open, and a pump waiting for a thread would stall its process. The files of multi-file transfers are copied, uploaded
+ * and fetched ahead on a shared pool of xferFilePoolSize threads, each transfer limiting how many of its
+ * own files are in progress.
+ * <p>
+ * Process output is drained according to processIo:
+ * <li> threads - a pooled thread per output stream
+ * <li> multiplexed - processIoThreads polling threads shared by all processes, the default
+ * <li> virtual - a virtual thread per stream, on runtimes that support them, otherwise as threads
+ * <p>
+ * Sizes are taken from the service properties:
+ * <li> shellPoolSize, shellQueueSize - shell task workers and queued tasks
+ * <li> xferPoolSize, xferQueueSize - transfer workers and queued transfers
+ * <li> xferFilePoolSize - threads moving the files of multi-file transfers
+ * <li> retryAfter - seconds a rejected client is asked to wait before retrying
+ */
+public class TaskScheduler {
+	private static Logger log = Logger.getLogger(TaskScheduler.class.getName());
+
+	private static final ThreadPoolExecutor shell = createPool("Process",
+			Resource.get("shellPoolSize", 16), Resource.get("shellQueueSize", 64));
+	private static final ThreadPoolExecutor xfer = createPool("Xfer",
+			Resource.get("xferPoolSize", 4), Resource.get("xferQueueSize", 64));
+	private static final String processIo = Resource.get("processIo", "multiplexed").trim().toLowerCase();
+	private static final ExecutorService io = createIoPool(processIo);
+	private static final ProcessIoMultiplexer multiplexer = "multiplexed".equals(processIo)?
+			new ProcessIoMultiplexer(Resource.get("processIoThreads", 2), io) : null;
+	private static final ExecutorService files = createSharedPool("File", Resource.get("xferFilePoolSize", 16));
+	private static final ScheduledExecutorService timer = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("Timer"));
+	private static final int retryAfter = Resource.get("retryAfter", 30);
+	private static final AtomicLong shellRejected = new AtomicLong(0);
+	private static final AtomicLong xferRejected = new AtomicLong(0);
+
+	private TaskScheduler() {}
+
+	/** Queue a shell task for execution
+	 * @param task
+	 * @throws RejectedExecutionException if the shell pool and its queue are full
+	 */
+	public static void submitShell(Runnable task) {
+		try {
+			shell.execute(task);
+		} catch (RejectedExecutionException e) {
+			shellRejected.incrementAndGet();
+			log.warning("Shell task rejected, "+shell.getActiveCount()+" active "+shell.getQueue().size()+" queued");
+			throw e;
+		}
+	}
+
+	/** Queue a transfer for execution
+	 * @param task
+	 * @throws RejectedExecutionException if the transfer pool and its queue are full
+	 */
+	public static void submitXfer(Runnable task) {
+		try {
+			xfer.execute(task);
+		} catch (RejectedExecutionException e) {
+			xferRejected.incrementAndGet();
+			log.warning("Xfer task rejected, "+xfer.getActiveCount()+" active "+xfer.getQueue().size()+" queued");
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the executor used to pump process input and output streams
+	 */
+	public static ExecutorService io() {
+		return io;
+	}
+
+	/** Files are moved by tasks that wait on nothing but their source and destination, and queue when all
+	 * threads are busy.
+	 * @return the executor shared by transfers to move individual files
+	 */
+	public static ExecutorService files() {
+		return files;
+	}
+
+	/** Drains a process output stream
+	 * @param gobbler the stream and the buffer it is drained into
+	 * @param process the process writing the stream
+	 * @return a future that completes when the stream reaches end of stream
+	 */
+	public static Future<?> submitOutput(StreamGobbler gobbler, Process process) {
+		if(multiplexer != null)
+			return multiplexer.register(gobbler, process);
+		return io.submit(gobbler);
+	}
+
+	/** Runs a housekeeping job periodically
+	 * @param job
+	 * @param period seconds between runs
+	 */
+	public static void schedule(Runnable job, long period) {
+		if(period > 0)
+			timer.scheduleWithFixedDelay(job, period, period, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @return seconds a rejected client should wait before retrying
+	 */
+	public static int getRetryAfter() {
+		return retryAfter;
+	}
+
+	/**
+	 * @return the shell task pool
+	 */
+	public static ThreadPoolExecutor getShellPool() {
+		return shell;
+	}
+
+	/**
+	 * @return the transfer pool
+	 */
+	public static ThreadPoolExecutor getXferPool() {
+		return xfer;
+	}
+
+	/**
+	 * @return the number of rejected shell tasks
+	 */
+	public static long getShellRejected() {
+		return shellRejected.get();
+	}
+
+	/**
+	 * @return the number of rejected transfers
+	 */
+	public static long getXferRejected() {
+		return xferRejected.get();
+	}
+
+	private static ThreadPoolExecutor createPool(String name, int size, int queue) {
+		if(size < 1) size = 1;
+		if(queue < 1) queue = 1;
+		ThreadPoolExecutor result = new ThreadPoolExecutor(size, size, 60L, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queue), new NamedThreadFactory(name),
+				new ThreadPoolExecutor.AbortPolicy());
+		result.allowCoreThreadTimeOut(true);
+		return result;
+	}
+
+	private static ExecutorService createIoPool(String mode) {
+		if("virtual".equals(mode)) {
+			try {
+				return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (Exception e) {
+				log.log(Level.WARNING, "Virtual threads not supported, using platform threads for process streams", e);
+			}
+		} else if(!"threads".equals(mode) && !"multiplexed".equals(mode)) {
+			log.warning("Unknown processIo mode "+mode+", using threads");
+		}
+		return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), new NamedThreadFactory("Stream"));
+	}
+
+	private static ThreadPoolExecutor createSharedPool(String name, int size) {
+		if(size < 1) size = 1;
+		ThreadPoolExecutor result = new ThreadPoolExecutor(size, size, 60L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(name));
+		result.allowCoreThreadTimeOut(true);
+		return result;
+	}
+
+	private static class NamedThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger(1);
+
+		NamedThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix+"-"+count.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -14,28 +14,63 @@
 package n3phele.agent.rest.impl;
 
 import java.io.BufferedInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 
 import n3phele.agent.model.Origin;
 import n3phele.agent.model.Task;
+import n3phele.agent.repohandlers.BufferPool;
+import n3phele.agent.repohandlers.Checkpoint;
+import n3phele.agent.repohandlers.Helper;
 import n3phele.agent.repohandlers.LocalFile;
 import n3phele.agent.repohandlers.Repo;
 import n3phele.agent.repohandlers.S3Large;
 import n3phele.agent.repohandlers.Swift;
+import n3phele.agent.zip.ZipDirectory;
+import n3phele.agent.zip.ZipEntry64;
 import n3phele.agent.zip.ZipInputStream;
+import n3phele.agent.zip.ZipOutputStream;
+import n3phele.service.core.Resource;
 
 import com.amazonaws.services.s3.internal.Mimetypes;
 //import java.util.zip.ZipInputStream;
 
-public class XferExecuter extends Thread {
+public class XferExecuter implements Runnable {
 	private static Logger log = Logger.getLogger(XferExecuter.class.getName());
+	private final static int unzipConcurrency = Resource.get("unzipConcurrency", 4);
+	private final static int unzipSpoolMemory = Resource.get("unzipSpoolMemory", 4*1024*1024);
+	private final static int fileConcurrency = Resource.get("xferFileConcurrency", 4);
+	private final static int retries = Resource.get("xferRetries", 2);
+	private final static long retryDelay = Resource.get("xferRetryDelay", 1000L);
+	private final static long retryMaxDelay = Resource.get("xferRetryMaxDelay", 60000L);
+	private final static boolean seekableExtract = Resource.get("zipSeekableExtract", true);
+	private final static int zipPipeBuffer = Resource.get("zipPipeBuffer", 1024*1024);
+	private final static int deflateThreads = Resource.get("zipDeflateThreads", Runtime.getRuntime().availableProcessors());
+	private final static int deflateBlock = Resource.get("zipDeflateBlock", 128*1024);
 
 	private Task me;
 	private String tag;
@@ -54,8 +89,9 @@ public class XferExecuter extends Thread {
 	private String destKind;
 	@SuppressWarnings("unused")
 	private boolean lazyXfer;
-	private int retry = 2;
 	private List<Origin> delivered = new ArrayList<Origin>();
+	private final Map<String, Checkpoint> checkpoints = new HashMap<String, Checkpoint>();
+	private final Map<String, Origin> completed = new HashMap<String, Origin>();
 
 	/** Transfers files between source and destination repositories.
 	 * Supports transfer of:
@@ -67,7 +103,24 @@ public class XferExecuter extends Thread {
 	 * <li> transfer of a zip file at the source to an expanded directory of files on the destination. This
 	 * is specified by a source file which ends in .zip with a destination which does not end in .zip. So
 	 * source of "foo.zip" and destination of "something/bar" would unpack the content of foo.zip into the
-	 * something/bar directory on the destination.
+	 * something/bar directory on the destination. Entries are inflated in order, with up to twice
+	 * unzipConcurrency entries spooled or uploading at once, and the manifest lists entries in archive order.
+	 * <li> transfer of all files matching a wildcard source, such as "logs/*.txt" or "data/{a,b}/*". Each
+	 * matching file is copied to the destination at its path relative to the directory preceding the first
+	 * wildcard character, with up to xferFileConcurrency files copied at once.
+	 * <li> transfer of all files matching a wildcard source, or all files in a source directory ending in /,
+	 * into a zip file on the destination. This is specified by a destination which ends in .zip. The archive
+	 * is streamed to the destination as it is written, holding each file at its path relative to the
+	 * directory preceding the first wildcard character. Up to xferFileConcurrency small files are fetched
+	 * ahead while the current file is deflated, and each file is deflated in blocks of zipDeflateBlock bytes
+	 * by up to zipDeflateThreads threads.
+	 * <p>
+	 * Copies between local files are made by the kernel, or as hard links when localLink is set.
+	 * <p>
+	 * A failed transfer is retried up to xferRetries times, waiting xferRetryDelay milliseconds before the
+	 * first retry and doubling the wait for each further retry, up to xferRetryMaxDelay. A retry skips the files
+	 * and zip entries already stored, and resumes a partly stored file from the content recorded in its
+	 * Checkpoint, reading the source from that offset. Partial content is discarded when the retries are exhausted.
 	 * @param me
 	 * @param lazyXfer
 	 * @param tag
@@ -90,7 +143,6 @@ public class XferExecuter extends Thread {
 			String srcAccount, String srcSecret, String srcKind,
 			URI destination, String destRoot, String destKey,
 			String destAccount, String destSecret, String destKind) {
-		super();
 		this.me = me;
 		this.lazyXfer = lazyXfer;
 		this.tag = tag;
@@ -111,19 +163,69 @@ public class XferExecuter extends Thread {
 	}
 	
 	/* 
-	 * @see java.lang.Thread#run()
+	 * @see java.lang.Runnable#run()
 	 */
 	public void run() {
+		String threadName = Thread.currentThread().getName();
+		try {    
+			Thread.currentThread().setName("Xfer"+me.getId());
+			for(int attempt = 0; ; attempt++) {
+				try {
+					this.delivered.clear();
+					transfer();
+					me.setExitcode(0);
+					break;
+				} catch (Throwable t) {
+					log.log(Level.SEVERE, "Xfer exception", t);
+					me.getStderrBuffer().append("Exception: "+t.toString()+"\n");
+					if(attempt >= retries) {
+						discard();
+						break;
+					}
+					long delay = Math.min(retryMaxDelay, retryDelay << Math.min(attempt, 20));
+					log.info("Retrying "+this.srcKey+" in "+delay+"ms after "+completed.size()+" files "+checkpoints);
+					me.getStderrBuffer().append("Retrying... \n");
+					try {
+						Thread.sleep(delay);
+					} catch (InterruptedException e) {
+						discard();
+						break;
+					}
+				}
+			}
+		} finally {
+			try {
+				me.setProgress(1000);
+				me.setFinished(Calendar.getInstance().getTime());
+				me.setManifest(this.delivered.toArray(new Origin[this.delivered.size()]));
+				SendNotification.sendCompletionNotification(me);
+			} finally {
+				Thread.currentThread().setName(threadName); // the worker is pooled
+			}
+		}
+	}
+	
+	/*
+	 * Makes one attempt at the transfer, resuming from the files and content recorded
+	 * by earlier attempts
+	 */
+	private void transfer() throws Exception {
 		Repo srcRepository = null;
 		Repo destRepository = null;
 		
 		try {    
-			this.setName("Xfer"+getId());
-			boolean zipTarget = this.destKey.endsWith("zip");
+			boolean zipTarget = this.destKey.endsWith(".zip");
 			boolean zipSrc = this.srcKey.endsWith(".zip");
 			int extract = this.srcKey.indexOf(".zip/");
 			
-			if(extract > 0) {
+			if(zipTarget && !zipSrc && (Helper.isWildcard(this.srcKey) || this.srcKey.endsWith("/"))) {
+				String wildcard = Helper.isWildcard(this.srcKey)? this.srcKey : this.srcKey+"*";
+				srcRepository = getRepo(this.tag, this.description, this.srcAccount, this.srcSecret, this.source, this.srcKind, this.srcRoot, wildcard);
+				pack(srcRepository, wildcard);
+			} else if(Helper.isWildcard(this.srcKey)) {
+				srcRepository = getRepo(this.tag, this.description, this.srcAccount, this.srcSecret, this.source, this.srcKind, this.srcRoot, this.srcKey);
+				copyAll(srcRepository);
+			} else if(extract > 0) {
 				ZipInputStream zip=null;
 				InputStream extractor=null;
 				InputStream progress=null;
@@ -139,15 +241,18 @@ public class XferExecuter extends Thread {
 					me.setCmd(new String[] {srcRepository.toString(), " extracting ", zipComponent, "->", destRepository.toString()});
 					log.info(srcRepository.toString()+ " extracting "+zipComponent+"->"+destRepository.toString());
 
-					Origin ref = destRepository.put(
-						extractor = new ZipExtractorStream( zipComponent,
-							zip = new ZipInputStream(
-								progress = new ProgressInputStream(
-									buffer = new BufferedInputStream(input = srcRepository.getInputStream(), 64 *1024), 
-									me, 
-									srcRepository.getTotalLength()))
-						),
-							0, null);
+					Origin ref = seekableExtract? extractMember(srcRepository, destRepository, zipComponent) : null;
+					if(ref == null) {
+						ref = destRepository.put(
+							extractor = new ZipExtractorStream( zipComponent,
+								zip = new ZipInputStream(
+									progress = new ProgressInputStream(
+										buffer = new BufferedInputStream(input = srcRepository.getInputStream(), 64 *1024), 
+										me, 
+										srcRepository.getTotalLength()))
+							),
+								0, null);
+					}
 					delivered.add(ref);
 				} finally {
 					try {
@@ -183,19 +288,29 @@ public class XferExecuter extends Thread {
 	
 					in = new ProgressInputStream(input = srcRepository.getInputStream(), me, srcRepository.getTotalLength());
 					zip = new ZipInputStream(in);
-					for(ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry() ){
-						String mimetype = getMimeType(entry.getName());
-						log.info("Next entry is "+entry.getName()+" size "+entry.getSize()+" type "+mimetype);
-						if(entry.isDirectory()) continue;
-						String filename = combinePathFragments(this.destKey,entry.getName());
-						destRepository = getRepo(this.tag+"/", this.description, this.destAccount, this.destSecret, this.destination, this.destKind, this.destRoot, 
-								filename);
-						me.setCmd(new String[] {srcRepository.toString(),"inflating",entry.getName(), "->", destRepository.toString()});
-						log.info(srcRepository.toString()+" inflating "+entry.getName()+"->"+destRepository.toString());
-						Origin file = destRepository.put(
-								new ProgressInputStream(zip, null, entry.getSize()),
-								entry.getSize(), mimetype);
-						delivered.add(file);
+					if(unzipConcurrency > 1) {
+						unpack(srcRepository, zip);
+					} else {
+						for(ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry() ){
+							String mimetype = getMimeType(entry.getName());
+							log.info("Next entry is "+entry.getName()+" size "+entry.getSize()+" type "+mimetype);
+							if(entry.isDirectory()) continue;
+							String filename = combinePathFragments(this.destKey,entry.getName());
+							Origin file = completed(filename);
+							if(file == null) {
+								destRepository = getRepo(this.tag+"/", this.description, this.destAccount, this.destSecret, this.destination, this.destKind, this.destRoot, 
+										filename);
+								me.setCmd(new String[] {srcRepository.toString(),"inflating",entry.getName(), "->", destRepository.toString()});
+								log.info(srcRepository.toString()+" inflating "+entry.getName()+"->"+destRepository.toString());
+								file = destRepository.put(
+										new ProgressInputStream(zip, null, entry.getSize()),
+										entry.getSize(), mimetype);
+								completed(filename, file);
+								destRepository.close();
+								destRepository = null;
+							}
+							delivered.add(file);
+						}
 					}
 				} finally {
 					try {
@@ -223,14 +338,22 @@ public class XferExecuter extends Thread {
 					destRepository = getRepo(this.tag, this.description, this.destAccount, this.destSecret, this.destination, this.destKind, this.destRoot, this.destKey);
 					long srcModificationTime = srcRepository.modificationTime();
 					destRepository.setModificationTime(srcModificationTime);
+					Checkpoint checkpoint = checkpoint(this.destKey);
+					long offset = checkpoint.getCommitted();
 					
 					me.setCmd(new String[] {srcRepository.toString(), "->", destRepository.toString()});
-					log.info(srcRepository.toString()+"->"+destRepository.toString());
-					Origin file = destRepository.put(
-							progress = new ProgressInputStream(
-									buffer = new BufferedInputStream(input = srcRepository.getInputStream(), 64*1024), me, srcRepository.getTotalLength()),
-							srcRepository.getLength(), srcRepository.getEncoding());
-					delivered.add(file);
+					log.info(srcRepository.toString()+"->"+destRepository.toString()+(offset == 0? "" : " resuming at "+offset));
+					if(srcRepository instanceof LocalFile && destRepository instanceof LocalFile) {
+						delivered.add(((LocalFile) destRepository).copyFrom((LocalFile) srcRepository, me, srcRepository.getTotalLength(), null, checkpoint));
+					} else {
+						Origin file = destRepository.put(
+								progress = new ProgressInputStream(
+										buffer = new BufferedInputStream(input = srcRepository.getInputStream(offset, srcRepository.getLength() - offset), 64*1024), me, srcRepository.getTotalLength(),
+										new AtomicLong(offset)),
+								srcRepository.getLength(), srcRepository.getEncoding(), checkpoint);
+						delivered.add(file);
+					}
+					completed(this.destKey, null);
 				} finally {
 					try {
 						if(buffer != null) buffer.close();
@@ -249,25 +372,505 @@ public class XferExecuter extends Thread {
 					}
 				}
 			}
-			me.setExitcode(0);
-		} catch (Throwable t) {
-			log.log(Level.SEVERE, "Xfer exception", t);
-			me.getStderrStringBuilder().append("Exception: "+t.toString()+"\n");
-			if(retry-- > 0) {
-				this.delivered.clear();
-				this.run();
-				me.getStderrStringBuilder().append("Retrying... \n");
-			}
 		} finally {
-			me.setProgress(1000);
-			me.setFinished(Calendar.getInstance().getTime());
-			me.setManifest(this.delivered.toArray(new Origin[this.delivered.size()]));
 			try {
-				srcRepository.getInputStream().close();
+				if(srcRepository != null) srcRepository.close();
+			} catch (Exception e) {
+				// ignore;
+			}
+			try {
+				if(destRepository != null) destRepository.close();
 			} catch (Exception e) {
 				// ignore;
 			}
-			SendNotification.sendCompletionNotification(me);
+		}
+	}
+	
+	/*
+	 * Extracts a single member using the archive central directory, reading only the directory and
+	 * the member rather than every entry before it.
+	 * @return the extracted file, or null if the archive must be read as a stream
+	 */
+	private Origin extractMember(final Repo srcRepository, Repo destRepository, String name) throws Exception {
+		ZipDirectory directory = new ZipDirectory(new ZipDirectory.Source() {
+			@Override
+			public long length() {
+				return srcRepository.getLength();
+			}
+			@Override
+			public InputStream open(long offset, long length) throws IOException {
+				return srcRepository.getInputStream(offset, length);
+			}});
+		ZipDirectory.Member member;
+		InputStream input;
+		try {
+			member = directory.getEntry(name);
+			if(member == null)
+				throw new FileNotFoundException(name);
+			input = directory.getInputStream(member);
+		} catch (ZipException e) {
+			log.info(srcRepository.toString()+" central directory not used, "+e.getMessage());
+			return null;
+		}
+		try {
+			return destRepository.put(new ProgressInputStream(input, me, member.getSize()), member.getSize(), null);
+		} finally {
+			try {
+				input.close();
+			} catch (Exception e) {
+				//
+			}
+		}
+	}
+
+	/*
+	 * Copies each file matching the wildcard source key, reporting task progress as the
+	 * proportion of the total length of all files copied. Files copied by an earlier
+	 * attempt are not copied again.
+	 */
+	private void copyAll(Repo srcRepository) throws Exception {
+		List<String> files = srcRepository.getFileList();
+		if(files == null)
+			throw new IllegalArgumentException(this.srcKind+" does not support wildcard "+this.srcKey);
+		String base = Helper.wildcardBase(this.srcKey);
+		final long total = srcRepository.getTotalLength();
+		final AtomicLong progress = new AtomicLong(0);
+		me.setCmd(new String[] {srcRepository.toString(), "->", combinePathFragments(this.destKey, "")});
+		log.info(srcRepository.toString()+" "+files.size()+" files "+total+" bytes ->"+this.destKey);
+		if(files.isEmpty())
+			return;
+		CompletionService<Origin> copiers = new ExecutorCompletionService<Origin>(TaskScheduler.files());
+		Set<Future<Origin>> copies = new HashSet<Future<Origin>>();
+		List<String> destFiles = new ArrayList<String>();
+		try {
+			for(String file : files) {
+				final String srcFile = base + file;
+				final String destFile = combinePathFragments(this.destKey, file);
+				destFiles.add(destFile);
+				Origin done = completed(destFile);
+				if(done != null) {
+					progress.addAndGet(done.getLength());
+					continue;
+				}
+				while(copies.size() >= Math.max(1, fileConcurrency)) {
+					Future<Origin> copy = copiers.take();
+					copies.remove(copy);
+					result(copy); // stop at the first failed copy
+				}
+				copies.add(copiers.submit(new Callable<Origin>() {
+					@Override
+					public Origin call() throws Exception {
+						return copy(srcFile, destFile, total, progress);
+					}}));
+			}
+			while(!copies.isEmpty()) {
+				Future<Origin> copy = copiers.take();
+				copies.remove(copy);
+				result(copy);
+			}
+			for(String destFile : destFiles) {
+				delivered.add(completed(destFile));
+			}
+		} finally {
+			for(Future<Origin> copy : copies) {
+				copy.cancel(true);
+			}
+		}
+	}
+	
+	private Origin copy(String srcFile, String destFile, long total, AtomicLong progress) throws Exception {
+		Repo srcRepository = null;
+		Repo destRepository = null;
+		InputStream input = null;
+		try {
+			srcRepository = getRepo(this.tag, this.description, this.srcAccount, this.srcSecret, this.source, this.srcKind, this.srcRoot, srcFile);
+			destRepository = getRepo(this.tag, this.description, this.destAccount, this.destSecret, this.destination, this.destKind, this.destRoot, destFile);
+			destRepository.setModificationTime(srcRepository.modificationTime());
+			Checkpoint checkpoint = checkpoint(destFile);
+			long offset = checkpoint.getCommitted();
+			log.info(srcRepository.toString()+"->"+destRepository.toString()+(offset == 0? "" : " resuming at "+offset));
+			Origin result;
+			if(srcRepository instanceof LocalFile && destRepository instanceof LocalFile) {
+				result = ((LocalFile) destRepository).copyFrom((LocalFile) srcRepository, me, total, progress, checkpoint);
+			} else {
+				progress.addAndGet(offset);
+				result = destRepository.put(
+						new ProgressInputStream(
+								new BufferedInputStream(input = srcRepository.getInputStream(offset, srcRepository.getLength() - offset), 64*1024), me, total, progress),
+						srcRepository.getLength(), srcRepository.getEncoding(), checkpoint);
+			}
+			completed(destFile, result);
+			return result;
+		} finally {
+			try {
+				if(input != null) input.close();
+			} catch (Exception e) {
+				//
+			}
+			if(srcRepository != null) srcRepository.close();
+			if(destRepository != null) destRepository.close();
+		}
+	}
+	
+	/*
+	 * Progress of the transfer to a destination key, kept across attempts
+	 */
+	private Checkpoint checkpoint(String destKey) {
+		synchronized(checkpoints) {
+			Checkpoint result = checkpoints.get(destKey);
+			if(result == null) {
+				result = new Checkpoint();
+				checkpoints.put(destKey, result);
+			}
+			return result;
+		}
+	}
+	
+	/*
+	 * The origin of a destination key stored by this or an earlier attempt, or null
+	 */
+	private Origin completed(String destKey) {
+		synchronized(checkpoints) {
+			return completed.get(destKey);
+		}
+	}
+	
+	/*
+	 * Records a destination key as stored, so its checkpoint is no longer needed
+	 */
+	private void completed(String destKey, Origin origin) {
+		synchronized(checkpoints) {
+			checkpoints.remove(destKey);
+			if(origin != null)
+				completed.put(destKey, origin);
+		}
+	}
+	
+	/*
+	 * Removes partial content of transfers that will not be resumed
+	 */
+	private void discard() {
+		List<Map.Entry<String, Checkpoint>> partial;
+		synchronized(checkpoints) {
+			partial = new ArrayList<Map.Entry<String, Checkpoint>>(checkpoints.entrySet());
+			checkpoints.clear();
+		}
+		for(Map.Entry<String, Checkpoint> i : partial) {
+			if(i.getValue().isEmpty())
+				continue;
+			Repo destRepository = null;
+			try {
+				destRepository = getRepo(this.tag, this.description, this.destAccount, this.destSecret, this.destination, this.destKind, this.destRoot, i.getKey());
+				log.info("Discarding "+destRepository.toString()+" "+i.getValue());
+				destRepository.discard(i.getValue());
+			} catch (Exception e) {
+				log.log(Level.WARNING, "Discard of "+i.getKey()+" failed", e);
+			} finally {
+				if(destRepository != null) destRepository.close();
+			}
+		}
+	}
+	
+	/*
+	 * Packs the files matching the wildcard into a zip archive written to the destination as a
+	 * stream of unknown length, so that no local space is used. While a file is deflated, up to
+	 * xferFileConcurrency following files of no more than unzipSpoolMemory bytes are fetched into
+	 * memory; larger files are read when they are reached.
+	 */
+	private void pack(Repo srcRepository, String wildcard) throws Exception {
+		Origin done = completed(this.destKey);
+		if(done != null) {
+			delivered.add(done);
+			return;
+		}
+		List<String> files = srcRepository.getFileList();
+		if(files == null)
+			throw new IllegalArgumentException(this.srcKind+" does not support wildcard "+wildcard);
+		String base = Helper.wildcardBase(wildcard);
+		final long total = srcRepository.getTotalLength();
+		final AtomicLong progress = new AtomicLong(0);
+		final Repo destRepository = getRepo(this.tag, this.description, this.destAccount, this.destSecret, this.destination, this.destKind, this.destRoot, this.destKey);
+		me.setCmd(new String[] {srcRepository.toString(), "packing", "->", destRepository.toString()});
+		log.info(srcRepository.toString()+" packing "+files.size()+" files "+total+" bytes ->"+destRepository.toString());
+		final ArchivePipe pipe = new ArchivePipe(zipPipeBuffer);
+		LinkedList<PrefetchTask> ahead = new LinkedList<PrefetchTask>();
+		byte[] buffer = BufferPool.acquire(64*1024);
+		FutureTask<Origin> upload = null;
+		try {
+			upload = new FutureTask<Origin>(new Callable<Origin>() {
+				@Override
+				public Origin call() throws Exception {
+					InputStream input = pipe.getInputStream();
+					try {
+						return destRepository.put(input, 0, getMimeType(destKey));
+					} finally {
+						input.close();
+					}
+				}});
+			TaskScheduler.files().execute(upload);
+			ZipOutputStream zip = new ZipOutputStream(pipe.getOutputStream());
+			zip.setParallelism(Math.max(1, deflateThreads), Math.max(32*1024, deflateBlock));
+			try {
+				int next = 0;
+				for(String file : files) {
+					while(ahead.size() < fileConcurrency && next < files.size()) {
+						final String srcFile = base + files.get(next++);
+						PrefetchTask task = new PrefetchTask(new Callable<Prefetch>() {
+							@Override
+							public Prefetch call() throws Exception {
+								return prefetch(srcFile, total, progress);
+							}});
+						ahead.add(task);
+						TaskScheduler.files().execute(task);
+					}
+					PrefetchTask task = ahead.removeFirst();
+					task.run(); // fetch it here if no pooled thread has started it
+					Prefetch fetched = result(task);
+					InputStream content = null;
+					InputStream input = null;
+					try {
+						ZipEntry64 entry = new ZipEntry64(file);
+						entry.setTime(fetched.repo.modificationTime());
+						zip.putNextEntry(entry);
+						if(fetched.spool != null) {
+							input = fetched.spool.getInputStream();
+						} else {
+							content = fetched.repo.getInputStream();
+							input = new ProgressInputStream(content, me, total, progress);
+						}
+						int n;
+						while((n = input.read(buffer)) != -1) {
+							zip.write(buffer, 0, n);
+						}
+						zip.closeEntry();
+					} finally {
+						try {
+							if(input != null) input.close();
+						} catch (Exception e) {
+							//
+						}
+						try {
+							if(content != null) content.close(); // not closed by the progress wrapper
+						} catch (Exception e) {
+							//
+						}
+						fetched.release();
+					}
+				}
+				zip.close();
+			} catch (Exception e) {
+				pipe.fail(e);
+				try {
+					zip.close();
+				} catch (Exception ignore) {
+				}
+				throw e;
+			}
+			Origin result = result(upload);
+			completed(this.destKey, result);
+			delivered.add(result);
+		} catch (Exception e) {
+			if(upload != null) {
+				try {
+					result(upload);
+				} catch (Exception uploadFailure) {
+					if(!pipe.isReported())
+						throw uploadFailure; // the upload failed first
+				}
+			}
+			throw e;
+		} finally {
+			for(PrefetchTask f : ahead) {
+				if(!f.cancel(true)) {
+					try {
+						f.get().release();
+					} catch (Exception e) {
+					}
+				}
+			}
+			BufferPool.release(buffer);
+			destRepository.close();
+		}
+	}
+
+	/*
+	 * Opens a file to be packed, reading its content into memory if it is no more than unzipSpoolMemory bytes
+	 */
+	private Prefetch prefetch(String srcFile, long total, AtomicLong progress) throws Exception {
+		Repo srcRepository = getRepo(this.tag, this.description, this.srcAccount, this.srcSecret, this.source, this.srcKind, this.srcRoot, srcFile);
+		EntrySpool spool = null;
+		try {
+			if(srcRepository.getLength() <= unzipSpoolMemory) {
+				spool = new EntrySpool("xfer"+me.getId(), unzipSpoolMemory);
+				InputStream input = srcRepository.getInputStream();
+				byte[] buffer = BufferPool.acquire(64*1024);
+				try {
+					spool.fill(new ProgressInputStream(input, me, total, progress), buffer);
+				} finally {
+					BufferPool.release(buffer);
+					input.close();
+				}
+			}
+			return new Prefetch(srcRepository, spool);
+		} catch (Exception e) {
+			if(spool != null) spool.release();
+			srcRepository.close();
+			throw e;
+		}
+	}
+
+	/*
+	 * Fetches a file to be packed ahead of the archive. A file fetched after the task has been
+	 * cancelled is released, as nobody will take it.
+	 */
+	private static class PrefetchTask extends FutureTask<Prefetch> {
+		PrefetchTask(Callable<Prefetch> prefetch) {
+			super(prefetch);
+		}
+
+		@Override
+		protected void set(Prefetch fetched) {
+			super.set(fetched);
+			if(isCancelled())
+				fetched.release();
+		}
+	}
+
+	/*
+	 * A file to be packed, with its content if it has been fetched ahead
+	 */
+	private static class Prefetch {
+		final Repo repo;
+		final EntrySpool spool;
+
+		Prefetch(Repo repo, EntrySpool spool) {
+			this.repo = repo;
+			this.spool = spool;
+		}
+
+		void release() {
+			if(spool != null) spool.release();
+			repo.close();
+		}
+	}
+
+	/*
+	 * Inflates zip entries into spools, uploading each spooled entry on the shared file pool. At most
+	 * twice unzipConcurrency entries are spooled or uploading at once, so inflating waits for slow uploads.
+	 * Entries stored by an earlier attempt are skipped.
+	 */
+	private void unpack(Repo srcRepository, ZipInputStream zip) throws Exception {
+		LinkedBlockingQueue<EntryUpload> finished = new LinkedBlockingQueue<EntryUpload>();
+		Set<EntryUpload> uploads = new HashSet<EntryUpload>();
+		List<String> filenames = new ArrayList<String>();
+		byte[] buffer = BufferPool.acquire(64*1024);
+		try {
+			for(ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry() ){
+				final String mimetype = getMimeType(entry.getName());
+				log.info("Next entry is "+entry.getName()+" size "+entry.getSize()+" type "+mimetype);
+				if(entry.isDirectory()) continue;
+				final String filename = combinePathFragments(this.destKey,entry.getName());
+				filenames.add(filename);
+				if(completed(filename) != null)
+					continue;
+				for(EntryUpload done = finished.poll(); done != null; done = finished.poll()) {
+					uploads.remove(done);
+					result(done); // stop at the first failed upload
+				}
+				while(uploads.size() >= 2*unzipConcurrency) {
+					EntryUpload done = finished.take();
+					uploads.remove(done);
+					result(done);
+				}
+				final EntrySpool spool = new EntrySpool("xfer"+me.getId(), unzipSpoolMemory);
+				boolean submitted = false;
+				try {
+					spool.fill(zip, buffer);
+					me.setCmd(new String[] {srcRepository.toString(),"inflating",entry.getName(), "->", filename});
+					log.info(srcRepository.toString()+" inflating "+entry.getName()+"->"+filename+" "+spool.getLength()+" bytes");
+					EntryUpload upload = new EntryUpload(new Callable<Origin>() {
+						@Override
+						public Origin call() throws Exception {
+							Repo destRepository = null;
+							try {
+								destRepository = getRepo(tag+"/", description, destAccount, destSecret, destination, destKind, destRoot, 
+										filename);
+								Origin result = destRepository.put(spool.getInputStream(), spool.getLength(), mimetype);
+								completed(filename, result);
+								return result;
+							} finally {
+								if(destRepository != null)
+									destRepository.close();
+							}
+						}}, spool, finished);
+					uploads.add(upload);
+					submitted = true;
+					TaskScheduler.files().execute(upload);
+				} finally {
+					if(!submitted)
+						spool.release();
+				}
+			}
+			for(EntryUpload upload : uploads) {
+				result(upload);
+			}
+			for(String filename : filenames) {
+				delivered.add(completed(filename));
+			}
+		} finally {
+			for(EntryUpload upload : uploads) {
+				upload.cancel(true);
+			}
+			BufferPool.release(buffer);
+		}
+	}
+
+	/*
+	 * The upload of a spooled zip entry, queued on finished when it ends. The spool is released
+	 * by the upload, or when it is cancelled before it starts.
+	 */
+	private static class EntryUpload extends FutureTask<Origin> {
+		private final EntrySpool spool;
+		private final AtomicBoolean claimed;
+		private final BlockingQueue<EntryUpload> finished;
+
+		EntryUpload(Callable<Origin> upload, EntrySpool spool, BlockingQueue<EntryUpload> finished) {
+			this(upload, spool, finished, new AtomicBoolean(false));
+		}
+
+		private EntryUpload(final Callable<Origin> upload, final EntrySpool spool, BlockingQueue<EntryUpload> finished,
+				final AtomicBoolean claimed) {
+			super(new Callable<Origin>() {
+				@Override
+				public Origin call() throws Exception {
+					if(!claimed.compareAndSet(false, true))
+						return null; // cancelled before it started
+					try {
+						return upload.call();
+					} finally {
+						spool.release();
+					}
+				}});
+			this.spool = spool;
+			this.finished = finished;
+			this.claimed = claimed;
+		}
+
+		@Override
+		protected void done() {
+			if(isCancelled() && claimed.compareAndSet(false, true))
+				spool.release();
+			finished.add(this);
+		}
+	}
+
+	private <T> T result(Future<T> upload) throws Exception {
+		try {
+			return upload.get();
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof Exception)
+				throw (Exception) e.getCause();
+			throw e;
 		}
 	}
 	
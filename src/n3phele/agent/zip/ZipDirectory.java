@@ -0,0 +1,416 @@
+/**
+ * @author Nigel Cook
+ *
+ * (C) Copyright 2010-2012. Nigel Cook. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * Licensed under the terms described in LICENSE file that accompanied this code, (the "License"); you may not use this file
+ * except in compliance with the License.
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ *  an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ */
+package n3phele.agent.zip;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import n3phele.agent.repohandlers.BufferPool;
+
+/** Reads single members of a zip archive using its central directory, so that only the end of
+ * the archive, the central directory and the member itself are read, rather than every preceding
+ * entry. Both zip and ZIP64 archives are supported.
+ * <p>
+ * The archive is read through a Source supporting reads of byte ranges. A ZipException from
+ * getEntry indicates that the archive has no usable central directory, and should be read as a
+ * stream instead.
+ */
+public class ZipDirectory {
+	private final static int ENDSIG = 0x06054b50;
+	private final static int CENSIG = 0x02014b50;
+	private final static int LOCSIG = 0x04034b50;
+	private final static int MAX_COMMENT = 0xFFFF;
+
+	/** An archive supporting reads of byte ranges
+	 */
+	public interface Source {
+		/**
+		 * @return the archive length
+		 * @throws IOException
+		 */
+		long length() throws IOException;
+
+		/**
+		 * @param offset offset of the first byte
+		 * @param length number of bytes required
+		 * @return the archive content from offset, of at least length bytes or to the end of the archive
+		 * @throws IOException
+		 */
+		InputStream open(long offset, long length) throws IOException;
+	}
+
+	/** An archive member, with the offset of its local header
+	 */
+	public static class Member extends ZipEntry64 {
+		private final long offset;
+		private final int flag;
+
+		Member(String name, long offset, int flag) {
+			super(name);
+			this.offset = offset;
+			this.flag = flag;
+		}
+
+		/**
+		 * @return the offset of the member local header in the archive
+		 */
+		public long getOffset() {
+			return this.offset;
+		}
+	}
+
+	private final Source source;
+	private long cenOffset = -1;
+	private long cenSize;
+	private long total;
+	private long prefix = 0;
+
+	/**
+	 * @param source the archive
+	 */
+	public ZipDirectory(Source source) {
+		this.source = source;
+	}
+
+	/** Finds a member in the central directory, reading the directory entries until the member is found
+	 * @param name the member name
+	 * @return the member, or null if the archive holds no such member
+	 * @throws ZipException if the archive has no usable central directory
+	 * @throws IOException
+	 */
+	public Member getEntry(String name) throws IOException {
+		if(cenOffset < 0)
+			readEnd();
+		DataInputStream cen = new DataInputStream(new BufferedInputStream(source.open(cenOffset, cenSize), ZipInputStream.INFLATE_BUFFER));
+		try {
+			byte[] header = new byte[ZipInputStream.CENHDR];
+			byte[] b = new byte[256];
+			for(long i = 0; i < total; i++) {
+				cen.readFully(header);
+				if(get32(header, 0) != CENSIG)
+					throw new ZipException("invalid central directory header");
+				int nameLength = get16(header, ZipInputStream.CENNAM);
+				int extraLength = get16(header, ZipInputStream.CENEXT);
+				int commentLength = get16(header, ZipInputStream.CENCOM);
+				if(nameLength > b.length)
+					b = new byte[nameLength];
+				cen.readFully(b, 0, nameLength);
+				if(!name.equals(new String(b, 0, nameLength, "UTF-8"))) {
+					skipFully(cen, extraLength + commentLength);
+					continue;
+				}
+				byte[] extra = new byte[extraLength];
+				cen.readFully(extra);
+				return member(name, header, extra);
+			}
+			return null;
+		} catch (EOFException e) {
+			throw new ZipException("truncated central directory");
+		} finally {
+			cen.close();
+		}
+	}
+
+	/** Opens a member, reading only its local header and data
+	 * @param member a member obtained from getEntry
+	 * @return the member content
+	 * @throws IOException
+	 */
+	public InputStream getInputStream(Member member) throws IOException {
+		if((member.flag & 1) == 1)
+			throw new ZipException("encrypted ZIP entry not supported");
+		if(member.getMethod() != ZipEntry.STORED && member.getMethod() != ZipEntry.DEFLATED)
+			throw new ZipException("invalid compression method");
+		// the local header name and extra field lengths are not known until it is read,
+		// so the range allows for the largest extra field
+		InputStream in = source.open(member.offset,
+				ZipInputStream.LOCHDR + member.getName().length()*3 + MAX_COMMENT + member.getCompressedSize());
+		try {
+			byte[] header = new byte[ZipInputStream.LOCHDR];
+			readFully(in, header, header.length);
+			if(get32(header, 0) != LOCSIG)
+				throw new ZipException("invalid local header at "+member.offset);
+			skipFully(in, get16(header, ZipInputStream.LOCNAM) + get16(header, ZipInputStream.LOCEXT));
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		return new MemberInputStream(member, in);
+	}
+
+	/*
+	 * Locates the central directory from the end of central directory record, and the ZIP64 end
+	 * record when present
+	 */
+	private void readEnd() throws IOException {
+		long length = source.length();
+		int tailLength = (int) Math.min(length, ZipInputStream.ENDHDR + MAX_COMMENT + ZipInputStream.ZIP64_LOCHDR);
+		byte[] tail = read(length - tailLength, tailLength);
+		int end = -1;
+		for(int i = tailLength - ZipInputStream.ENDHDR; i >= 0; i--) {
+			if(get32(tail, i) == ENDSIG && i + ZipInputStream.ENDHDR + get16(tail, i + ZipInputStream.ENDCOM) <= tailLength) {
+				end = i;
+				break;
+			}
+		}
+		if(end < 0)
+			throw new ZipException("no end of central directory record");
+		long endPosition = length - tailLength + end;
+		cenSize = get32(tail, end + ZipInputStream.ENDSIZ);
+		cenOffset = get32(tail, end + ZipInputStream.ENDOFF);
+		total = get16(tail, end + ZipInputStream.ENDTOT);
+		int locator = end - ZipInputStream.ZIP64_LOCHDR;
+		if(locator >= 0 && get32(tail, locator) == ZipInputStream.ZIP64_LOCSIG) {
+			long zip64Position = get64(tail, locator + ZipInputStream.ZIP64_LOCOFF);
+			byte[] zip64 = read(zip64Position, ZipInputStream.ZIP64_ENDHDR);
+			if(get32(zip64, 0) != ZipInputStream.ZIP64_ENDSIG)
+				throw new ZipException("invalid ZIP64 end of central directory record");
+			cenSize = get64(zip64, ZipInputStream.ZIP64_ENDSIZ);
+			cenOffset = get64(zip64, ZipInputStream.ZIP64_ENDOFF);
+			total = get64(zip64, ZipInputStream.ZIP64_ENDTOT);
+			endPosition = zip64Position;
+		} else if(cenSize == ZipInputStream.ZIP64_MAGICVAL || cenOffset == ZipInputStream.ZIP64_MAGICVAL
+				|| total == ZipInputStream.ZIP64_MAGICCOUNT) {
+			throw new ZipException("no ZIP64 end of central directory locator");
+		}
+		// data prepended to the archive, as in self extracting archives, moves all offsets
+		long prefix = endPosition - cenSize - cenOffset;
+		if(prefix < 0)
+			throw new ZipException("invalid central directory offset");
+		cenOffset += prefix;
+		this.prefix = prefix;
+	}
+
+	/*
+	 * Builds a member from its central directory header and extra field
+	 */
+	private Member member(String name, byte[] header, byte[] extra) throws ZipException {
+		long size = get32(header, ZipInputStream.CENLEN);
+		long csize = get32(header, ZipInputStream.CENSIZ);
+		long offset = get32(header, ZipInputStream.CENOFF);
+		// ZIP64 extra field values are present only for the fields holding the magic value
+		for(int off = 0; off + 4 <= extra.length; ) {
+			int id = get16(extra, off);
+			int sz = get16(extra, off + 2);
+			off += 4;
+			if(id == ZipInputStream.ZIP64_EXTID) {
+				int pos = off;
+				if(size == ZipInputStream.ZIP64_MAGICVAL && pos + 8 <= off + sz) {
+					size = get64(extra, pos);
+					pos += 8;
+				}
+				if(csize == ZipInputStream.ZIP64_MAGICVAL && pos + 8 <= off + sz) {
+					csize = get64(extra, pos);
+					pos += 8;
+				}
+				if(offset == ZipInputStream.ZIP64_MAGICVAL && pos + 8 <= off + sz) {
+					offset = get64(extra, pos);
+					pos += 8;
+				}
+				break;
+			}
+			off += sz;
+		}
+		if(size < 0 || csize < 0 || offset < 0)
+			throw new ZipException("invalid ZIP64 extra field for "+name);
+		Member result = new Member(name, offset + prefix, get16(header, ZipInputStream.CENFLG));
+		result.setMethod(get16(header, ZipInputStream.CENHOW));
+		result.setTime(dosToJavaTime(get32(header, ZipInputStream.CENTIM)));
+		result.setCrc(get32(header, ZipInputStream.CENCRC));
+		result.setSize(size);
+		result.setCompressedSize(csize);
+		return result;
+	}
+
+	/*
+	 * Member content, inflated if compressed, with its size and CRC checked at the end
+	 */
+	private static class MemberInputStream extends InputStream {
+		private final Member member;
+		private final InputStream raw;
+		private final InputStream in;
+		private final Inflater inflater;
+		private final byte[] buffer;
+		private final CRC32 crc = new CRC32();
+		private long count = 0;
+		private boolean closed = false;
+
+		MemberInputStream(Member member, InputStream raw) {
+			this.member = member;
+			this.raw = new BoundedInputStream(raw, member.getCompressedSize());
+			if(member.getMethod() == ZipEntry.DEFLATED) {
+				this.inflater = new Inflater(true);
+				this.buffer = BufferPool.acquire(ZipInputStream.INFLATE_BUFFER);
+				InflaterInputStream inflating = new InflaterInputStream(this.raw, inflater, 1) {
+					{
+						this.buf = buffer;
+					}
+				};
+				this.in = inflating;
+			} else {
+				this.inflater = null;
+				this.buffer = null;
+				this.in = this.raw;
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int n = read(b, 0, 1);
+			return n <= 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(closed)
+				throw new IOException("Stream closed");
+			int n = in.read(b, off, len);
+			if(n > 0) {
+				crc.update(b, off, n);
+				count += n;
+			} else if(n == -1) {
+				if(count != member.getSize())
+					throw new ZipException("invalid entry size (expected " + member.getSize() +
+							" but got " + count + " bytes)");
+				if(crc.getValue() != member.getCrc())
+					throw new ZipException("invalid entry CRC (expected 0x" + Long.toHexString(member.getCrc()) +
+							" but got 0x" + Long.toHexString(crc.getValue()) + ")");
+			}
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if(!closed) {
+				closed = true;
+				try {
+					raw.close();
+				} finally {
+					if(inflater != null) {
+						inflater.end();
+						BufferPool.release(buffer);
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	 * Returns no more than a fixed number of bytes of a stream
+	 */
+	private static class BoundedInputStream extends InputStream {
+		private final InputStream in;
+		private long remaining;
+
+		BoundedInputStream(InputStream in, long length) {
+			this.in = in;
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if(remaining <= 0)
+				return -1;
+			int result = in.read();
+			if(result >= 0)
+				remaining--;
+			return result;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(remaining <= 0)
+				return -1;
+			int n = in.read(b, off, (int) Math.min(len, remaining));
+			if(n > 0)
+				remaining -= n;
+			else if(n == -1)
+				throw new EOFException("member data truncated");
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	private byte[] read(long offset, int length) throws IOException {
+		InputStream in = source.open(offset, length);
+		try {
+			byte[] result = new byte[length];
+			readFully(in, result, length);
+			return result;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void readFully(InputStream in, byte[] b, int length) throws IOException {
+		int count = 0;
+		while(count < length) {
+			int n = in.read(b, count, length - count);
+			if(n == -1)
+				throw new EOFException();
+			count += n;
+		}
+	}
+
+	private static void skipFully(InputStream in, long n) throws IOException {
+		while(n > 0) {
+			long skipped = in.skip(n);
+			if(skipped <= 0) {
+				if(in.read() == -1)
+					throw new EOFException();
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+
+	private static int get16(byte[] b, int off) {
+		return (b[off] & 0xff) | ((b[off+1] & 0xff) << 8);
+	}
+
+	private static long get32(byte[] b, int off) {
+		return (get16(b, off) | ((long)get16(b, off+2) << 16)) & 0xffffffffL;
+	}
+
+	private static long get64(byte[] b, int off) {
+		return get32(b, off) | (get32(b, off+4) << 32);
+	}
+
+	/*
+	 * Converts DOS time to Java time (number of milliseconds since epoch)
+	 */
+	@SuppressWarnings("deprecation")
+	private static long dosToJavaTime(long dtime) {
+		java.util.Date d = new java.util.Date((int)(((dtime >> 25) & 0x7f) + 80),
+				(int)(((dtime >> 21) & 0x0f) - 1),
+				(int)((dtime >> 16) & 0x1f),
+				(int)((dtime >> 11) & 0x1f),
+				(int)((dtime >> 5) & 0x3f),
+				(int)((dtime << 1) & 0x3e));
+		return d.getTime();
+	}
+}
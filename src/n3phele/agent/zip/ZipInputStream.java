@@ -33,12 +33,16 @@ import java.io.InputStream;
 import java.io.IOException;
 import java.io.EOFException;
 import java.io.PushbackInputStream;
+import java.util.Date;
 import java.util.zip.CRC32;
 import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 
+import n3phele.agent.repohandlers.BufferPool;
+import n3phele.service.core.Resource;
+
 
 /**
  * This class implements an input stream filter for reading files in the
@@ -53,11 +57,17 @@ class ZipInputStream extends InflaterInputStream  {
     private int flag;
     private CRC32 crc = new CRC32();
     private long remaining;
-    private byte[] tmpbuf = new byte[512];
+    private byte[] tmpbuf = BufferPool.acquire(512);
 
     private static final int STORED = ZipEntry.STORED;
     private static final int DEFLATED = ZipEntry.DEFLATED;
 
+    /*
+     * Size of the buffer of compressed input passed to the inflater, and of
+     * the pushback buffer returning the unused input at the end of an entry.
+     */
+    static final int INFLATE_BUFFER = Math.max(512, Resource.get("zipInflateBuffer", 64*1024));
+
     private boolean closed = false;
     // this flag is set to true after EOF has reached for
     // one entry
@@ -73,15 +83,44 @@ class ZipInputStream extends InflaterInputStream  {
     }
 
     /**
-     * Creates a new ZIP input stream.
+     * Creates a new ZIP input stream, with an input buffer of the
+     * zipInflateBuffer size.
      * @param in the actual input stream
      */
     public ZipInputStream(InputStream in) {
-        super(new PushbackInputStream(in, 512), new Inflater(true), 512);
+        this(in, INFLATE_BUFFER);
+    }
+
+    /**
+     * Creates a new ZIP input stream with the specified input buffer size.
+     * @param in the actual input stream
+     * @param size the input buffer size
+     * @exception IllegalArgumentException if size is <= 0
+     */
+    public ZipInputStream(InputStream in, int size) {
+        this(in, BufferPool.acquire(checkSize(size)));
+    }
+
+    private static int checkSize(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("buffer size <= 0");
+        }
+        return size;
+    }
+
+    /*
+     * Uses a pooled inflater input buffer. The pushback buffer must hold
+     * the unused input left in the inflater buffer at the end of an entry.
+     */
+    private ZipInputStream(InputStream in, byte[] inflaterBuffer) {
+        super(new PushbackInputStream(in, inflaterBuffer.length), new Inflater(true), 1);
         //usesDefaultInflater = true;
         if(in == null) {
+            BufferPool.release(inflaterBuffer);
+            BufferPool.release(tmpbuf);
             throw new NullPointerException("in is null");
         }
+        buf = inflaterBuffer;
     }
 
     /**
@@ -110,16 +149,61 @@ class ZipInputStream extends InflaterInputStream  {
 
     /**
      * Closes the current ZIP entry and positions the stream for reading the
-     * next entry.
+     * next entry. When the local header gives the compressed size, the
+     * unread entry data is skipped without being inflated or checked.
      * @exception ZipException if a ZIP file error has occurred
      * @exception IOException if an I/O error has occurred
      */
     public void closeEntry() throws IOException {
         ensureOpen();
-        while (read(tmpbuf, 0, tmpbuf.length) != -1) ;
+        if (!skipEntry()) {
+            while (read(tmpbuf, 0, tmpbuf.length) != -1) ;
+        }
         entryEOF = true;
     }
 
+    /*
+     * Skips the unread compressed data of the current entry, when its length
+     * is known from the local header.
+     * @return false if the entry must be read to find its end
+     */
+    private boolean skipEntry() throws IOException {
+        if (entry == null || (flag & 8) == 8) {
+            return false;
+        }
+        long n;
+        if (entry.getMethod() == STORED) {
+            n = remaining;
+        } else {
+            long csize = entry.getCompressedSize();
+            if (csize < 0 || csize == ZIP64_MAGICVAL) {
+                return false;
+            }
+            // input passed to the inflater but not yet inflated is part of
+            // the buffer already read from the stream
+            int buffered = inf.getRemaining();
+            n = csize - inf.getBytesRead() - buffered;
+            if (n < 0) {
+                // the buffer extends into the next entry
+                ((PushbackInputStream)in).unread(buf, len - (int)-n, (int)-n);
+                n = 0;
+            }
+        }
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw new ZipException("unexpected EOF");
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+        remaining = 0;
+        entry = null;
+        return true;
+    }
+
     /**
      * Returns 0 after EOF has reached for the current entry data,
      * otherwise always return 1.
@@ -244,6 +328,9 @@ class ZipInputStream extends InflaterInputStream  {
         if (!closed) {
             super.close();
             closed = true;
+            inf.end();
+            BufferPool.release(buf);
+            BufferPool.release(tmpbuf);
         }
     }
 
@@ -278,7 +365,7 @@ class ZipInputStream extends InflaterInputStream  {
             throw new ZipException("encrypted ZIP entry not supported");
         }
         e.setMethod(get16(tmpbuf, LOCHOW));
-        e.setTime(get32(tmpbuf, LOCTIM));
+        e.setTime(dosToJavaTime(get32(tmpbuf, LOCTIM)));
         if ((flag & 8) == 8) {
             /* "Data Descriptor" present */
             if (e.getMethod() != DEFLATED) {
@@ -320,6 +407,20 @@ class ZipInputStream extends InflaterInputStream  {
         return e;
     }
 
+    /*
+     * Converts DOS time to Java time (number of milliseconds since epoch).
+     */
+    @SuppressWarnings("deprecation")
+    private static long dosToJavaTime(long dtime) {
+        Date d = new Date((int)(((dtime >> 25) & 0x7f) + 80),
+                          (int)(((dtime >> 21) & 0x0f) - 1),
+                          (int)((dtime >> 16) & 0x1f),
+                          (int)((dtime >> 11) & 0x1f),
+                          (int)((dtime >> 5) & 0x3f),
+                          (int)((dtime << 1) & 0x3e));
+        return d.getTime();
+    }
+
     /*
      * Fetches a UTF8-encoded String from the specified byte array.
      */
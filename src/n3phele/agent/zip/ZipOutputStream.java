@@ -35,11 +35,26 @@ import java.io.OutputStream;
 import java.io.IOException;
 import java.util.Vector;
 import java.util.HashSet;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 
+import n3phele.agent.repohandlers.BufferPool;
+import n3phele.service.core.Resource;
+
 /**
  * This class implements an output stream filter for writing files in the
  * ZIP file format. Includes support for both compressed and uncompressed
@@ -81,6 +96,37 @@ class ZipOutputStream extends DeflaterOutputStream  {
 
     private boolean closed = false;
 
+    // parallel deflate of DEFLATED entries written with a data descriptor
+    private static final int DICTIONARY = 32*1024;
+    // input of an empty last block, which is shared and never released
+    private static final byte[] EMPTY = new byte[0];
+    // blocks of all streams share zipDeflatePoolSize threads
+    private static final int poolSize = Math.max(1,
+            Resource.get("zipDeflatePoolSize", Runtime.getRuntime().availableProcessors()));
+    private static final ThreadPoolExecutor pool = new ThreadPoolExecutor(poolSize, poolSize, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger(1);
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Deflate-"+count.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                }});
+    static {
+        pool.allowCoreThreadTimeOut(true);
+    }
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private int threads = 1;
+    private int blockSize = 128*1024;
+    private boolean parallel = false;       // current entry is deflated in blocks
+    private byte[] block;                   // input of the block being filled
+    private int blockLength;
+    private byte[] previous;                // input of the last block submitted
+    private byte[] lastWritten;             // input of the last block written
+    private LinkedList<Future<Block>> blocks = new LinkedList<Future<Block>>();
+    private ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+    private long blockBytesRead;
+    private long blockBytesWritten;
+
     private static int version(ZipEntry e) throws ZipException {
         switch (e.getMethod()) {
         case DEFLATED: return 20;
@@ -112,9 +158,8 @@ class ZipOutputStream extends DeflaterOutputStream  {
      * @param out the actual output stream
      */
     public ZipOutputStream(OutputStream out) {
-    	 super(out);
-        //super(out, new Deflater(Deflater.DEFAULT_COMPRESSION, true));
-       // usesDefaultDeflater = true;
+        // zip entries hold raw deflate data, without the zlib header and trailer
+        super(out, new Deflater(Deflater.DEFAULT_COMPRESSION, true));
     }
 
     /**
@@ -154,6 +199,29 @@ class ZipOutputStream extends DeflaterOutputStream  {
      */
     public void setLevel(int level) {
         def.setLevel(level);
+        this.level = level;
+    }
+
+    /**
+     * Sets the number of threads deflating subsequent entries which are
+     * DEFLATED and have no size, compressed size or crc-32 set. The entry
+     * data is divided into blocks deflated concurrently, each primed with
+     * the last 32KB of the block before it, and joined into a single
+     * deflate stream, as pigz does. The result is a standard entry, a
+     * little larger than one deflated serially. With one thread, the
+     * default, entries are deflated serially. The blocks of all streams
+     * are deflated by zipDeflatePoolSize shared threads.
+     * @param threads the maximum number of blocks deflated at once
+     * @param blockSize the number of bytes in each block
+     * @exception IllegalArgumentException if threads is less than 1 or
+     *            blockSize is less than 32KB
+     */
+    public void setParallelism(int threads, int blockSize) {
+        if (threads < 1 || blockSize < DICTIONARY) {
+            throw new IllegalArgumentException("invalid parallelism");
+        }
+        this.threads = threads;
+        this.blockSize = blockSize;
     }
 
     /**
@@ -205,6 +273,11 @@ class ZipOutputStream extends DeflaterOutputStream  {
         current = new XEntry(e, written);
         xentries.add(current);
         writeLOC(current);
+        parallel = threads > 1 && e.getMethod() == DEFLATED && (current.flag & 8) == 8;
+        if (parallel) {
+            blockBytesRead = 0;
+            blockBytesWritten = 0;
+        }
     }
 
     /**
@@ -219,6 +292,22 @@ class ZipOutputStream extends DeflaterOutputStream  {
             ZipEntry e = current.entry;
             switch (e.getMethod()) {
             case DEFLATED:
+                if (parallel) {
+                    submit(true);
+                    while (!blocks.isEmpty()) {
+                        writeBlock();
+                    }
+                    releaseInput(lastWritten);
+                    lastWritten = null;
+                    previous = null;
+                    parallel = false;
+                    e.setSize(blockBytesRead);
+                    e.setCompressedSize(blockBytesWritten);
+                    e.setCrc(crc.getValue());
+                    writeEXT(e);
+                    written += e.getCompressedSize();
+                    break;
+                }
                 def.finish();
                 while (!def.finished()) {
                     deflate();
@@ -297,7 +386,11 @@ class ZipOutputStream extends DeflaterOutputStream  {
         ZipEntry entry = current.entry;
         switch (entry.getMethod()) {
         case DEFLATED:
-            super.write(b, off, len);
+            if (parallel) {
+                fill(b, off, len);
+            } else {
+                super.write(b, off, len);
+            }
             break;
         case STORED:
             written += len;
@@ -343,8 +436,186 @@ class ZipOutputStream extends DeflaterOutputStream  {
      */
     public void close() throws IOException {
         if (!closed) {
-            super.close();
-            closed = true;
+            try {
+                super.close();
+            } finally {
+                closed = true;
+                def.end();
+                discardBlocks();
+            }
+        }
+    }
+
+    /*
+     * The deflated output of one block of a parallel deflated entry.
+     */
+    private static class Block {
+        final byte[] input;
+        final byte[] output;
+        final int inputLength;
+        final int outputLength;
+        Block(byte[] input, int inputLength, byte[] output, int outputLength) {
+            this.input = input;
+            this.inputLength = inputLength;
+            this.output = output;
+            this.outputLength = outputLength;
+        }
+    }
+
+    /*
+     * Adds entry data to the current block, submitting each full block.
+     */
+    private void fill(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (block == null) {
+                block = BufferPool.acquire(blockSize);
+                blockLength = 0;
+            }
+            int n = Math.min(len, blockSize - blockLength);
+            System.arraycopy(b, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+            if (blockLength == blockSize) {
+                submit(false);
+            }
+        }
+    }
+
+    /*
+     * Submits the current block for deflating, writing the output of
+     * completed blocks so that at most threads blocks are in progress.
+     * The last block of an entry, which may be empty, ends the deflate
+     * stream.
+     */
+    private void submit(final boolean last) throws IOException {
+        while (blocks.size() >= threads) {
+            writeBlock();
+        }
+        final byte[] input = block != null ? block : EMPTY;
+        final int length = block != null ? blockLength : 0;
+        final byte[] dictionary = previous;
+        final int dictionaryLength = previous != null ? blockSize : 0;
+        block = null;
+        blockLength = 0;
+        blocks.add(pool.submit(new Callable<Block>() {
+            public Block call() throws Exception {
+                return deflateBlock(input, length, dictionary, dictionaryLength, last);
+            }}));
+        blockBytesRead += length;
+        // the input is kept as the dictionary of the next block until that
+        // block has been deflated, so it is released after the next block
+        previous = input;
+    }
+
+    /*
+     * Deflates a block, primed with the end of the block before it. All but
+     * the last block end with a sync flush, so that the next block starts
+     * on a byte boundary and the blocks join into one deflate stream.
+     */
+    private Block deflateBlock(byte[] input, int length, byte[] dictionary, int dictionaryLength, boolean last) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        } else {
+            deflater.setLevel(level);
+        }
+        byte[] output = BufferPool.acquire(length + (length >> 3) + 64);
+        int count = 0;
+        try {
+            if (dictionary != null) {
+                int n = Math.min(DICTIONARY, dictionaryLength);
+                deflater.setDictionary(dictionary, dictionaryLength - n, n);
+            }
+            deflater.setInput(input, 0, length);
+            if (last) {
+                deflater.finish();
+            }
+            while (true) {
+                if (count == output.length) {
+                    byte[] grown = BufferPool.acquire(2 * output.length);
+                    System.arraycopy(output, 0, grown, 0, count);
+                    BufferPool.release(output);
+                    output = grown;
+                }
+                int n = deflater.deflate(output, count, output.length - count,
+                        last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                count += n;
+                if (last ? deflater.finished() : count < output.length) {
+                    break;
+                }
+            }
+            deflater.reset();
+            deflaters.add(deflater);
+            deflater = null;
+            return new Block(input, length, output, count);
+        } catch (RuntimeException e) {
+            BufferPool.release(output);
+            throw e;
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    /*
+     * Writes the output of the first block in progress, waiting for it to
+     * be deflated. The input of the block before it is released, as the
+     * block has been deflated and it is no longer needed as a dictionary.
+     */
+    private void writeBlock() throws IOException {
+        Block b;
+        try {
+            b = blocks.getFirst().get();
+        } catch (InterruptedException e) {
+            throw new IOException("Deflate interrupted");
+        } catch (ExecutionException e) {
+            ZipException ze = new ZipException("Deflate failed: " + e.getCause());
+            ze.initCause(e.getCause());
+            throw ze;
+        }
+        blocks.removeFirst();
+        releaseInput(lastWritten);
+        lastWritten = b.input;
+        try {
+            out.write(b.output, 0, b.outputLength);
+            blockBytesWritten += b.outputLength;
+        } finally {
+            BufferPool.release(b.output);
+        }
+    }
+
+    /*
+     * Returns the input of a block to the pool, unless it is the shared
+     * empty block.
+     */
+    private static void releaseInput(byte[] input) {
+        if (input != EMPTY) {
+            BufferPool.release(input);
+        }
+    }
+
+    /*
+     * Discards the blocks of an unfinished entry and ends the deflaters.
+     */
+    private void discardBlocks() {
+        for (Future<Block> f : blocks) {
+            try {
+                Block b = f.get();
+                BufferPool.release(b.output);
+                releaseInput(b.input);
+            } catch (Exception e) {
+            }
+        }
+        blocks.clear();
+        releaseInput(lastWritten);
+        BufferPool.release(block);
+        lastWritten = null;
+        previous = null;
+        block = null;
+        for (Deflater d = deflaters.poll(); d != null; d = deflaters.poll()) {
+            d.end();
         }
     }
 
@@ -363,7 +634,7 @@ class ZipOutputStream extends DeflaterOutputStream  {
             writeShort(version(e));     // version needed to extract
             writeShort(flag);           // general purpose bit flag
             writeShort(e.getMethod());       // compression method
-            writeInt(e.getTime());           // last modification time
+            writeInt(javaToDosTime(e.getTime())); // last modification time
 
             // store size, uncompressed size, and crc-32 in data descriptor
             // immediately following compressed entry data
@@ -379,7 +650,7 @@ class ZipOutputStream extends DeflaterOutputStream  {
             }
             writeShort(flag);           // general purpose bit flag
             writeShort(e.getMethod());       // compression method
-            writeInt(e.getTime());           // last modification time
+            writeInt(javaToDosTime(e.getTime())); // last modification time
             writeInt(e.getCrc());            // crc-32
             if (hasZip64) {
                 writeInt(ZIP64_MAGICVAL);
@@ -460,7 +731,7 @@ class ZipOutputStream extends DeflaterOutputStream  {
         }
         writeShort(flag);           // general purpose bit flag
         writeShort(e.getMethod());       // compression method
-        writeInt(e.getTime());           // last modification time
+        writeInt(javaToDosTime(e.getTime())); // last modification time
         writeInt(e.getCrc());            // crc-32
         writeInt(csize);            // compressed size
         writeInt(size);             // uncompressed size
@@ -605,6 +876,21 @@ class ZipOutputStream extends DeflaterOutputStream  {
         written += len;
     }
 
+    /*
+     * Converts Java time to DOS time.
+     */
+    @SuppressWarnings("deprecation")
+    private static long javaToDosTime(long time) {
+        Date d = new Date(time);
+        int year = d.getYear() + 1900;
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25 | (d.getMonth() + 1) << 21 |
+               d.getDate() << 16 | d.getHours() << 11 | d.getMinutes() << 5 |
+               d.getSeconds() >> 1;
+    }
+
     /*
      * Returns the length of String's UTF8 encoding.
      */
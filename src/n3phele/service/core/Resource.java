@@ -53,5 +53,33 @@ public class Resource {
 		}
 		return result;
 	}
+	
+	public static int get(String key, int defaultValue) {
+		int result = defaultValue;
+		if(resource == null) {
+			resource = new Resource();
+		}
+		try {
+			String field = resource.bundle.getString(key);
+			result = Integer.valueOf(field.trim());
+		} catch (Exception e) {
+			result = defaultValue;
+		}
+		return result;
+	}
+	
+	public static long get(String key, long defaultValue) {
+		long result = defaultValue;
+		if(resource == null) {
+			resource = new Resource();
+		}
+		try {
+			String field = resource.bundle.getString(key);
+			result = Long.valueOf(field.trim());
+		} catch (Exception e) {
+			result = defaultValue;
+		}
+		return result;
+	}
 
 }
@@ -0,0 +1,113 @@
+/**
+ * @author Nigel Cook
+ *
+ * (C) Copyright 2010-2012. Nigel Cook. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * Licensed under the terms described in LICENSE file that accompanied this code, (the "License"); you may not use this file
+ * except in compliance with the License.
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ *  an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ */
+package n3phele.agent.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class OutputBufferTest {
+	private OutputBuffer buffer = new OutputBuffer("OutputBufferTest");
+
+	@After
+	public void release() {
+		buffer.release();
+	}
+
+	@Test
+	public void shortOutputIsHeldInTheHead() throws IOException {
+		buffer.append("hello ");
+		buffer.append("world");
+		assertEquals(11, buffer.length());
+		assertEquals("hello world", buffer.toString());
+		assertEquals("world", read(6, 100));
+		assertEquals("", read(11, 10));
+	}
+
+	@Test
+	public void spilledOutputIsReadableByOffset() throws IOException {
+		byte[] content = pattern(3*1024*1024 + 17);
+		// odd sized appends so the ring wraps at a different index each time
+		for(int off = 0, n = 1; off < content.length; off += n, n = (n*7 + 13) % 50000 + 1) {
+			buffer.append(content, off, Math.min(n, content.length - off));
+		}
+		assertEquals(content.length, buffer.length());
+		assertTrue(buffer.getRetainedBytes() < content.length / 4);
+		assertArrayEquals(content, readAll(content.length, 8191));
+		assertArrayEquals(content, readAll(content.length, 1000003));
+	}
+
+	@Test
+	public void appendLargerThanTheRingSpillsDirectly() throws IOException {
+		byte[] content = pattern(2*1024*1024);
+		buffer.append(content, 0, 100);
+		buffer.append(content, 100, content.length - 100);
+		assertEquals(content.length, buffer.length());
+		assertArrayEquals(content, readAll(content.length, 65536));
+	}
+
+	@Test
+	public void releasedSpillIsNoLongerReadable() throws IOException {
+		byte[] content = pattern(2*1024*1024);
+		buffer.append(content, 0, content.length);
+		buffer.release();
+		byte[] b = new byte[10];
+		assertEquals(10, buffer.read(0, b, 0, 10));
+		assertEquals(10, buffer.read(content.length - 10, b, 0, 10));
+		try {
+			buffer.read(content.length / 2, b, 0, 10);
+			fail("spilled output read after release");
+		} catch (IOException expected) {
+		}
+		assertTrue(buffer.toString().contains(" bytes omitted ..."));
+	}
+
+	@Test
+	public void incompleteUTF8SequencesAreHeldBack() {
+		byte[] euro = "a€".getBytes(OutputBuffer.UTF8);
+		assertEquals(4, OutputBuffer.completeUTF8(euro, 0, 4));
+		assertEquals(1, OutputBuffer.completeUTF8(euro, 0, 3));
+		assertEquals(1, OutputBuffer.completeUTF8(euro, 0, 2));
+		assertEquals(1, OutputBuffer.completeUTF8(euro, 0, 1));
+	}
+
+	private String read(long position, int len) throws IOException {
+		byte[] b = new byte[len];
+		int n = buffer.read(position, b, 0, len);
+		return new String(b, 0, n, OutputBuffer.UTF8);
+	}
+
+	private byte[] readAll(int length, int chunk) throws IOException {
+		byte[] result = new byte[length];
+		int n;
+		for(int off = 0; off < length; off += n) {
+			n = buffer.read(off, result, off, Math.min(chunk, length - off));
+			assertTrue(n > 0);
+		}
+		return result;
+	}
+
+	private static byte[] pattern(int length) {
+		byte[] result = new byte[length];
+		for(int i = 0; i < length; i++)
+			result[i] = (byte)(i*31 + i/251);
+		return result;
+	}
+}
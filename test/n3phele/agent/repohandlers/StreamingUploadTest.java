@@ -0,0 +1,206 @@
+/**
+ * @author Nigel Cook
+ *
+ * (C) Copyright 2010-2012. Nigel Cook. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * Licensed under the terms described in LICENSE file that accompanied this code, (the "License"); you may not use this file
+ * except in compliance with the License.
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ *  an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ */
+package n3phele.agent.repohandlers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class StreamingUploadTest {
+	private static final int PART = 1024;
+
+	/*
+	 * Stores parts in memory, failing one part number if asked
+	 */
+	private static class MemoryUpload extends StreamingUpload<String> {
+		final Map<Integer, byte[]> stored;
+		final AtomicInteger uploaded = new AtomicInteger(0);
+		int failAt = 0;
+		byte[] object = null;
+		int begun = 0;
+		int aborted = -1;
+
+		MemoryUpload(Map<Integer, byte[]> stored) {
+			super("memory", PART, 100, 3);
+			this.stored = stored;
+		}
+
+		@Override
+		protected void single(byte[] buffer, int len) {
+			object = Arrays.copyOf(buffer, len);
+		}
+
+		@Override
+		protected String begin() {
+			begun++;
+			return "upload";
+		}
+
+		@Override
+		protected String part(int partNumber, byte[] buffer, int len) throws IOException {
+			if(partNumber == failAt)
+				throw new IOException("part "+partNumber+" failed");
+			try {
+				Thread.sleep(partNumber % 3); // complete out of order
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			uploaded.incrementAndGet();
+			stored.put(partNumber, Arrays.copyOf(buffer, len));
+			return "etag"+partNumber;
+		}
+
+		@Override
+		protected void complete(List<String> parts) {
+			ByteArrayOutputStream joined = new ByteArrayOutputStream();
+			for(int i = 0; i < parts.size(); i++) {
+				assertEquals("etag"+(i+1), parts.get(i));
+				byte[] part = stored.get(i+1);
+				joined.write(part, 0, part.length);
+			}
+			object = joined.toByteArray();
+		}
+
+		@Override
+		protected void abort(int partCount) {
+			aborted = partCount;
+		}
+
+		@Override
+		protected String save(String part) {
+			return part;
+		}
+
+		@Override
+		protected String restore(int partNumber, String saved) {
+			return saved;
+		}
+	}
+
+	@Test
+	public void shortStreamIsStoredAsOneObject() throws IOException {
+		byte[] content = content(PART - 1);
+		MemoryUpload upload = new MemoryUpload(new ConcurrentHashMap<Integer, byte[]>());
+		assertEquals(content.length, upload.upload(new ByteArrayInputStream(content)));
+		assertArrayEquals(content, upload.object);
+		assertEquals(0, upload.begun);
+	}
+
+	@Test
+	public void partsAreJoinedInOrder() throws IOException {
+		byte[] content = content(20*PART + 77);
+		MemoryUpload upload = new MemoryUpload(new ConcurrentHashMap<Integer, byte[]>());
+		assertEquals(content.length, upload.upload(new ByteArrayInputStream(content)));
+		assertArrayEquals(content, upload.object);
+		assertEquals(21, upload.uploaded.get());
+	}
+
+	@Test
+	public void failedUploadWithoutCheckpointIsAborted() {
+		MemoryUpload upload = new MemoryUpload(new ConcurrentHashMap<Integer, byte[]>());
+		upload.failAt = 4;
+		try {
+			upload.upload(new ByteArrayInputStream(content(10*PART)));
+			fail("upload succeeded");
+		} catch (IOException expected) {
+		}
+		assertTrue(upload.aborted >= 4);
+		assertNull(upload.object);
+	}
+
+	@Test
+	public void failedUploadResumesFromCheckpoint() throws IOException {
+		byte[] content = content(10*PART + 5);
+		Map<Integer, byte[]> stored = new ConcurrentHashMap<Integer, byte[]>();
+		Checkpoint checkpoint = new Checkpoint();
+		MemoryUpload first = new MemoryUpload(stored);
+		first.failAt = 6;
+		try {
+			first.upload(new ByteArrayInputStream(content), checkpoint);
+			fail("upload succeeded");
+		} catch (IOException expected) {
+		}
+		assertEquals(-1, first.aborted);
+		assertEquals("upload", checkpoint.getUploadId());
+		assertEquals(5, checkpoint.getPartCount());
+		assertEquals(5*PART, checkpoint.getCommitted());
+		assertTrue(checkpoint.getStarted() >= 6);
+
+		MemoryUpload resumed = new MemoryUpload(stored);
+		int offset = (int) checkpoint.getCommitted();
+		assertEquals(content.length, resumed.upload(new ByteArrayInputStream(content, offset, content.length - offset), checkpoint));
+		assertArrayEquals(content, resumed.object);
+		assertEquals(0, resumed.begun);
+		assertEquals(6, resumed.uploaded.get());
+		assertEquals(11, checkpoint.getPartCount());
+	}
+
+	@Test
+	public void discardAbortsStartedParts() {
+		Checkpoint checkpoint = new Checkpoint();
+		MemoryUpload upload = new MemoryUpload(new ConcurrentHashMap<Integer, byte[]>());
+		upload.failAt = 3;
+		try {
+			upload.upload(new ByteArrayInputStream(content(8*PART)), checkpoint);
+			fail("upload succeeded");
+		} catch (IOException expected) {
+		}
+		int started = checkpoint.getStarted();
+		MemoryUpload discard = new MemoryUpload(upload.stored);
+		discard.discard(checkpoint);
+		assertEquals(started, discard.aborted);
+		assertTrue(checkpoint.isEmpty());
+	}
+
+	@Test
+	public void failedReadIsReported() {
+		MemoryUpload upload = new MemoryUpload(new ConcurrentHashMap<Integer, byte[]>());
+		InputStream failing = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				throw new IOException("read failed");
+			}
+		};
+		try {
+			upload.upload(failing);
+			fail("upload succeeded");
+		} catch (IOException expected) {
+			assertEquals("read failed", expected.getMessage());
+		}
+		assertEquals(0, upload.begun);
+		assertFalse(upload.aborted >= 0);
+	}
+
+	private static byte[] content(int length) {
+		byte[] result = new byte[length];
+		for(int i = 0; i < length; i++)
+			result[i] = (byte)(i*7 + i/PART);
+		return result;
+	}
+}
@@ -0,0 +1,170 @@
+/**
+ * @author Nigel Cook
+ *
+ * (C) Copyright 2010-2012. Nigel Cook. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * Licensed under the terms described in LICENSE file that accompanied this code, (the "License"); you may not use this file
+ * except in compliance with the License.
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ *  an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ */
+package n3phele.agent.zip;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Test;
+
+public class ZipDirectoryTest {
+
+	/*
+	 * An archive held in memory
+	 */
+	private static class Bytes implements ZipDirectory.Source {
+		final byte[] archive;
+
+		Bytes(byte[] archive) {
+			this.archive = archive;
+		}
+
+		@Override
+		public long length() {
+			return archive.length;
+		}
+
+		@Override
+		public InputStream open(long offset, long length) {
+			return new ByteArrayInputStream(archive, (int) offset, archive.length - (int) offset);
+		}
+	}
+
+	@Test
+	public void membersAreFoundThroughTheCentralDirectory() throws IOException {
+		byte[] text = content(100000, 7);
+		byte[] random = content(30000, 0);
+		byte[] archive = archive("archive comment", "a/text.txt", text, "b/stored.bin", random, "c/empty.txt", new byte[0]);
+		ZipDirectory directory = new ZipDirectory(new Bytes(archive));
+		assertArrayEquals(text, read(directory, "a/text.txt"));
+		assertArrayEquals(random, read(directory, "b/stored.bin"));
+		assertArrayEquals(new byte[0], read(directory, "c/empty.txt"));
+		assertNull(directory.getEntry("missing"));
+		assertEquals(text.length, directory.getEntry("a/text.txt").getSize());
+	}
+
+	@Test
+	public void prefixedArchiveIsRead() throws IOException {
+		byte[] text = content(5000, 3);
+		byte[] archive = archive(null, "x", content(700, 1), "y", text);
+		byte[] prefixed = new byte[archive.length + 12345];
+		Arrays.fill(prefixed, 0, 12345, (byte) 'p');
+		System.arraycopy(archive, 0, prefixed, 12345, archive.length);
+		ZipDirectory directory = new ZipDirectory(new Bytes(prefixed));
+		assertEquals(12345 + new ZipDirectory(new Bytes(archive)).getEntry("y").getOffset(), directory.getEntry("y").getOffset());
+		assertArrayEquals(text, read(directory, "y"));
+	}
+
+	@Test
+	public void zip64EndRecordIsRead() throws IOException {
+		// more entries than a zip end record can count, so the ZIP64 end record is written
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(bytes);
+		zip.setLevel(0);
+		for(int i = 0; i < 0x10010; i++) {
+			zip.putNextEntry(new ZipEntry("e"+i));
+			zip.write(("entry "+i).getBytes("UTF-8"));
+			zip.closeEntry();
+		}
+		zip.close();
+		ZipDirectory directory = new ZipDirectory(new Bytes(bytes.toByteArray()));
+		assertEquals("entry 65540", new String(read(directory, "e65540"), "UTF-8"));
+		assertEquals("entry 0", new String(read(directory, "e0"), "UTF-8"));
+	}
+
+	@Test(expected = ZipException.class)
+	public void truncatedArchiveHasNoDirectory() throws IOException {
+		byte[] archive = archive(null, "a", content(50000, 0));
+		new ZipDirectory(new Bytes(Arrays.copyOf(archive, archive.length - 30))).getEntry("a");
+	}
+
+	@Test
+	public void corruptMemberFailsItsCheck() throws IOException {
+		byte[] archive = archive(null, "a", content(50000, 5));
+		ZipDirectory directory = new ZipDirectory(new Bytes(archive));
+		ZipDirectory.Member member = directory.getEntry("a");
+		archive[(int) member.getOffset() + 30 + 1 + 10] ^= 0x55; // in the member data, past its name
+		try {
+			read(directory, "a");
+			fail("corrupt member read");
+		} catch (ZipException expected) {
+		}
+	}
+
+	private static byte[] read(ZipDirectory directory, String name) throws IOException {
+		InputStream input = directory.getInputStream(directory.getEntry(name));
+		try {
+			ByteArrayOutputStream result = new ByteArrayOutputStream();
+			byte[] b = new byte[777];
+			int n;
+			while((n = input.read(b)) != -1)
+				result.write(b, 0, n);
+			return result.toByteArray();
+		} finally {
+			input.close();
+		}
+	}
+
+	/*
+	 * Builds an archive of name, content pairs. Content with a zero seed byte is STORED.
+	 */
+	static byte[] archive(String comment, Object... members) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(bytes);
+		if(comment != null)
+			zip.setComment(comment);
+		for(int i = 0; i < members.length; i += 2) {
+			byte[] data = (byte[]) members[i+1];
+			ZipEntry entry = new ZipEntry((String) members[i]);
+			if(data.length > 0 && data[0] == 0) {
+				CRC32 crc = new CRC32();
+				crc.update(data);
+				entry.setMethod(ZipEntry.STORED);
+				entry.setSize(data.length);
+				entry.setCrc(crc.getValue());
+			}
+			zip.putNextEntry(entry);
+			zip.write(data);
+			zip.closeEntry();
+		}
+		zip.close();
+		return bytes.toByteArray();
+	}
+
+	/*
+	 * Compressible content, or random looking content when step is 0, starting with byte step
+	 */
+	static byte[] content(int length, int step) {
+		byte[] result = new byte[length];
+		long x = 12345;
+		for(int i = 0; i < length; i++) {
+			x = x*6364136223846793005L + 1442695040888963407L;
+			result[i] = step == 0? (byte)(x >>> 56) : (byte)('a' + (i*step/64) % 26);
+		}
+		result[0] = (byte) step;
+		return result;
+	}
+}
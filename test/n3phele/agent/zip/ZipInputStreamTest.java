@@ -0,0 +1,153 @@
+/**
+ * @author Nigel Cook
+ *
+ * (C) Copyright 2010-2012. Nigel Cook. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * Licensed under the terms described in LICENSE file that accompanied this code, (the "License"); you may not use this file
+ * except in compliance with the License.
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ *  an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ */
+package n3phele.agent.zip;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Test;
+
+public class ZipInputStreamTest {
+
+	/*
+	 * Counts the bytes skipped rather than read
+	 */
+	private static class Counting extends FilterInputStream {
+		long skipped = 0;
+
+		Counting(byte[] archive) {
+			super(new ByteArrayInputStream(archive));
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long result = super.skip(n);
+			skipped += result;
+			return result;
+		}
+	}
+
+	@Test
+	public void unreadEntriesAreSkipped() throws IOException {
+		byte[][] contents = { ZipDirectoryTest.content(200000, 3), ZipDirectoryTest.content(150000, 0),
+				ZipDirectoryTest.content(90000, 5), ZipDirectoryTest.content(1000, 9) };
+		Counting input = new Counting(archive(contents, true));
+		ZipInputStream zip = new ZipInputStream(input, 4096);
+		assertEquals("e0", zip.getNextEntry().getName());
+		assertEquals(contents[0][0], (byte) zip.read()); // partly read
+		assertEquals("e1", zip.getNextEntry().getName()); // not read
+		assertEquals("e2", zip.getNextEntry().getName());
+		assertEquals("e3", zip.getNextEntry().getName());
+		assertArrayEquals(contents[3], readEntry(zip));
+		assertNull(zip.getNextEntry());
+		zip.close();
+		assertTrue(input.skipped > contents[1].length - 8192); // all but the inflater buffer
+	}
+
+	@Test
+	public void inflaterInputPastTheEntryIsUnread() throws IOException {
+		byte[][] contents = new byte[40][];
+		for(int i = 0; i < contents.length; i++)
+			contents[i] = ZipDirectoryTest.content(100 + 37*i, i % 4);
+		ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(archive(contents, true)), 64*1024);
+		for(int i = 0; i < contents.length; i++) {
+			ZipEntry entry = zip.getNextEntry();
+			assertEquals("e"+i, entry.getName());
+			if(i % 3 == 0) {
+				assertArrayEquals(contents[i], readEntry(zip));
+			} else if(i % 3 == 1) {
+				assertEquals(contents[i][0], (byte) zip.read());
+			}
+		}
+		assertNull(zip.getNextEntry());
+		zip.close();
+	}
+
+	@Test
+	public void entriesWithDataDescriptorsAreReadThrough() throws IOException {
+		byte[][] contents = { ZipDirectoryTest.content(70000, 3), ZipDirectoryTest.content(5000, 1),
+				ZipDirectoryTest.content(3000, 7) };
+		Counting input = new Counting(archive(contents, false));
+		ZipInputStream zip = new ZipInputStream(input, 1024);
+		zip.getNextEntry();
+		zip.read();
+		zip.getNextEntry();
+		assertEquals("e2", zip.getNextEntry().getName());
+		assertArrayEquals(contents[2], readEntry(zip));
+		zip.close();
+		assertEquals(0, input.skipped); // the end of a DEFLATED entry is only found by inflating it
+	}
+
+	private static byte[] readEntry(ZipInputStream zip) throws IOException {
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		byte[] b = new byte[1000];
+		int n;
+		while((n = zip.read(b, 0, b.length)) != -1)
+			result.write(b, 0, n);
+		return result.toByteArray();
+	}
+
+	/*
+	 * Builds an archive of entries e0, e1... When sized, the sizes and crc are in the local headers,
+	 * otherwise DEFLATED entries are followed by a data descriptor. Content with a zero first byte is STORED.
+	 */
+	private static byte[] archive(byte[][] contents, boolean sized) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(bytes);
+		for(int i = 0; i < contents.length; i++) {
+			byte[] data = contents[i];
+			ZipEntry entry = new ZipEntry("e"+i);
+			if(data[0] == 0 || sized) {
+				CRC32 crc = new CRC32();
+				crc.update(data);
+				entry.setSize(data.length);
+				entry.setCrc(crc.getValue());
+				if(data[0] == 0) {
+					entry.setMethod(ZipEntry.STORED);
+				} else {
+					entry.setCompressedSize(deflatedSize(data));
+				}
+			}
+			zip.putNextEntry(entry);
+			zip.write(data);
+			zip.closeEntry();
+		}
+		zip.close();
+		return bytes.toByteArray();
+	}
+
+	private static long deflatedSize(byte[] data) {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		deflater.setInput(data);
+		deflater.finish();
+		byte[] b = new byte[8192];
+		while(!deflater.finished())
+			deflater.deflate(b);
+		long result = deflater.getBytesWritten();
+		deflater.end();
+		return result;
+	}
+}
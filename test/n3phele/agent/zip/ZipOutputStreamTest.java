@@ -0,0 +1,118 @@
+/**
+ * @author Nigel Cook
+ *
+ * (C) Copyright 2010-2012. Nigel Cook. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * Licensed under the terms described in LICENSE file that accompanied this code, (the "License"); you may not use this file
+ * except in compliance with the License.
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ *  an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ */
+package n3phele.agent.zip;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.junit.Test;
+
+public class ZipOutputStreamTest {
+	private static final int BLOCK = 32*1024;
+	private static final String[] NAMES = { "text", "random", "exact", "empty", "small", "large" };
+	private static final byte[][] CONTENTS = { ZipDirectoryTest.content(300000, 3), ZipDirectoryTest.content(200000, 0),
+			ZipDirectoryTest.content(4*BLOCK, 5), new byte[0], ZipDirectoryTest.content(100, 7),
+			ZipDirectoryTest.content(3*1024*1024 + 11, 2) };
+
+	@Test
+	public void parallelEntriesAreReadBySerialReaders() throws IOException {
+		File file = File.createTempFile("ZipOutputStreamTest", ".zip");
+		try {
+			OutputStream out = new FileOutputStream(file);
+			try {
+				write(out, 4);
+			} finally {
+				out.close();
+			}
+			ZipFile zip = new ZipFile(file);
+			try {
+				for(int i = 0; i < NAMES.length; i++) {
+					ZipEntry entry = zip.getEntry(NAMES[i]);
+					assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+					assertEquals(CONTENTS[i].length, entry.getSize());
+					InputStream input = zip.getInputStream(entry);
+					assertArrayEquals(NAMES[i], CONTENTS[i], read(input));
+					input.close();
+				}
+			} finally {
+				zip.close();
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void parallelEntriesAreStreamed() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		write(bytes, 3);
+		ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		for(int i = 0; i < NAMES.length; i++) {
+			assertEquals(NAMES[i], zip.getNextEntry().getName());
+			assertArrayEquals(NAMES[i], CONTENTS[i], read(zip));
+		}
+		assertNull(zip.getNextEntry());
+		zip.close();
+	}
+
+	@Test
+	public void parallelOutputIsCloseToSerial() throws IOException {
+		ByteArrayOutputStream serial = new ByteArrayOutputStream();
+		write(serial, 1);
+		ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+		write(parallel, 4);
+		assertFalse(Arrays.equals(serial.toByteArray(), parallel.toByteArray())); // blocks end in sync flushes
+		assertTrue(parallel.size() < serial.size() * 1.05 + 1024);
+	}
+
+	/*
+	 * Writes the entries in writes of varying length, so that blocks are filled across writes
+	 */
+	private static void write(OutputStream out, int threads) throws IOException {
+		ZipOutputStream zip = new ZipOutputStream(out);
+		if(threads > 1)
+			zip.setParallelism(threads, BLOCK);
+		for(int i = 0; i < NAMES.length; i++) {
+			zip.putNextEntry(new ZipEntry64(NAMES[i]));
+			byte[] data = CONTENTS[i];
+			for(int off = 0, n = 1; off < data.length; off += n, n = (n*5 + 3) % 70000 + 1)
+				zip.write(data, off, Math.min(n, data.length - off));
+			zip.closeEntry();
+		}
+		zip.close();
+	}
+
+	private static byte[] read(InputStream input) throws IOException {
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		byte[] b = new byte[4096];
+		int n;
+		while((n = input.read(b, 0, b.length)) != -1)
+			result.write(b, 0, n);
+		return result.toByteArray();
+	}
+}